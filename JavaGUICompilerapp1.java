@@ -1,32 +1,112 @@
 import javax.swing.*;
+import javax.swing.event.*;
+import javax.swing.filechooser.FileNameExtensionFilter;
+import javax.swing.table.AbstractTableModel;
 import javax.swing.text.*;
+import javax.swing.undo.AbstractUndoableEdit;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
+import javax.swing.undo.UndoableEdit;
 import java.awt.*;
 import java.awt.event.*;
+import java.awt.geom.Rectangle2D;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.ParseException;
+import java.time.Duration;
 
 import javax.tools.*;
 import javax.tools.JavaCompiler.CompilationTask;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import com.sun.source.tree.CompilationUnitTree;
+import com.sun.source.tree.IdentifierTree;
+import com.sun.source.tree.MemberSelectTree;
+import com.sun.source.util.JavacTask;
+import com.sun.source.util.TaskEvent;
+import com.sun.source.util.TaskListener;
+import com.sun.source.util.TreePath;
+import com.sun.source.util.TreePathScanner;
+import com.sun.source.util.Trees;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.*;
 import java.util.concurrent.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.BooleanSupplier;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
 import java.util.*;
 import java.util.List;
 
 public class JavaGUICompilerapp1 extends JFrame {
-    private JTextArea codeArea;
+    private JTextPane codeArea;
     private JTextArea consoleArea;
+    private BoundedConsole boundedConsole;
     private JTextField inputField;
     private JScrollPane codeScrollPane;
     private JScrollPane consoleScrollPane;
     private File currentFile = null;
-    private ExecutorService executor = Executors.newSingleThreadExecutor();
-    private Future<?> runningProcess = null;
-    private PipedOutputStream pipedOutputStream;
-    private PipedInputStream pipedInputStream;
-    private InputStream originalSystemIn;
+    private boolean compileInMemory = true;
+    private CompilerService compilerService;
+    private ProjectBuilder projectBuilder; // Non-null in project mode
+    private RunScheduler runScheduler; // Runs only; a run holds its worker until the program exits
+    // Compiles and builds, in order, so a compile never waits behind programs waiting for input
+    private final ExecutorService compileExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "compiler");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private JvmPool jvmPool;
+    private volatile RunLimits runLimits = RunLimits.fromProperties();
+    private JTabbedPane consoleTabs; // The IDE's own console first, then one tab per run
+    private final List<RunSession> runSessions = new ArrayList<>();
+    private int runCounter;
+    private IncrementalLexer incrementalLexer;
+    private final TokenTableModel tokenTableModel = new TokenTableModel();
+    private JTable tokenTable;
+    private JDialog metricsDialog; // Created when first shown
+    private JScrollPane tokenScrollPane; // Added to consoleTabs by the first lexical analysis
+    private SyntaxHighlighter syntaxHighlighter;
+    private final ErrorMarkerIndex errorMarkers = new ErrorMarkerIndex();
+    private ErrorGutter errorGutter;
+    private BackgroundAnalysis backgroundAnalysis;
+    private Object errorLineHighlight; // Tag of the highlighted error line, if any
+    private final ModificationTracker modificationTracker = new ModificationTracker(this::updateTitle);
+    // Opens and saves the editor's file; one at a time, so a save never races a load
+    private final ExecutorService fileExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "file-io");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private JProgressBar fileProgress;
+    private boolean fileTaskRunning; // Only used on the EDT
 
     // New theme management fields
     private boolean isDarkTheme = false;
@@ -40,52 +120,94 @@ public class JavaGUICompilerapp1 extends JFrame {
         setDefaultCloseOperation(EXIT_ON_CLOSE);
         setSize(900, 750);
         setLocationRelativeTo(null);
-        this.originalSystemIn = System.in;
+        this.runScheduler = new RunScheduler(Integer.getInteger("runner.workers", Runtime.getRuntime().availableProcessors()));
+        this.compilerService = CompilerService.create();
+        if (compilerService != null) {
+            compileExecutor.submit(compilerService::warmUp); // Queued ahead of any compile the user starts
+        }
+        this.jvmPool = new JvmPool(Integer.getInteger("runner.poolSize", 1), runLimits.heapMegabytes);
         initUI();
         applyTheme();
         setVisible(true);
     }
 
     private void initUI() {
-        codeArea = new JTextArea(30, 80);
+        codeArea = new JTextPane() {
+            @Override
+            public boolean getScrollableTracksViewportWidth() {
+                // Keep long lines unwrapped and scroll horizontally instead
+                Container parent = getParent();
+                return parent == null || getUI().getPreferredSize(this).width <= parent.getSize().width;
+            }
+        };
+        codeArea.setEditorKit(new EditorDocumentKit());
         codeArea.setFont(new Font("Consolas", Font.PLAIN, 14));
-        codeArea.setTabSize(4);
+        syntaxHighlighter = new SyntaxHighlighter(codeArea);
+        errorGutter = new ErrorGutter(codeArea, errorMarkers);
+        backgroundAnalysis = new BackgroundAnalysis();
+        attachEditorDocument();
+        codeArea.addPropertyChangeListener("document", e -> attachEditorDocument());
         codeScrollPane = new JScrollPane(codeArea);
+        codeScrollPane.setRowHeaderView(errorGutter);
         codeScrollPane.setBorder(BorderFactory.createTitledBorder("Java Source Code"));
 
-        consoleArea = new JTextArea();
-        consoleArea.setEditable(false);
-        consoleArea.setFont(new Font("Monospaced", Font.PLAIN, 14));
-        consoleArea.setMargin(new Insets(5, 5, 5, 5));
-        consoleArea.setLineWrap(true);
-        consoleArea.setWrapStyleWord(true);
+        consoleArea = newConsoleArea();
         consoleScrollPane = new JScrollPane(consoleArea);
+        boundedConsole = new BoundedConsole(consoleArea, consoleScrollPane);
         consoleScrollPane.setPreferredSize(new Dimension(800, 200));
-        consoleScrollPane.setBorder(BorderFactory.createTitledBorder("Console"));
+        consoleTabs = new JTabbedPane();
+        consoleTabs.addTab("Console", consoleScrollPane);
+        consoleTabs.addChangeListener(e -> updateInputField());
+
+        tokenTable = new JTable(tokenTableModel);
+        tokenTable.setFont(new Font("Monospaced", Font.PLAIN, 14));
+        tokenTable.setRowHeight(tokenTable.getFontMetrics(tokenTable.getFont()).getHeight() + 2);
+        tokenTable.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+        tokenTable.getColumnModel().getColumn(0).setMaxWidth(80);
+        tokenTable.getColumnModel().getColumn(1).setMaxWidth(60);
+        tokenTable.getColumnModel().getColumn(2).setPreferredWidth(150);
+        tokenTable.getColumnModel().getColumn(2).setMaxWidth(200);
+        tokenTable.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                // Double-click selects the token in the editor
+                int row = tokenTable.rowAtPoint(e.getPoint());
+                if (e.getClickCount() == 2 && row >= 0) {
+                    int start = tokenTableModel.getStart(row);
+                    if (start < 0) return;
+                    codeArea.select(start, start + tokenTableModel.getLength(row));
+                    codeArea.requestFocusInWindow();
+                }
+            }
+        });
+        tokenScrollPane = new JScrollPane(tokenTable);
 
         inputField = new JTextField();
         inputField.setFont(new Font("Consolas", Font.PLAIN, 14));
         inputField.setEnabled(false);
-        inputField.setToolTipText("Type here to provide input to running program and press Enter");
+        inputField.setToolTipText("Type here to provide input to the program in the selected tab and press Enter");
+        // Keep the line breaks of pasted text, so several lines of input can be sent at once
+        inputField.getDocument().putProperty("filterNewlines", Boolean.FALSE);
         inputField.addActionListener(e -> {
             String inputText = inputField.getText();
-            if (inputText != null && pipedOutputStream != null) {
+            RunSession run = selectedRun();
+            StdinChannel input = run != null ? run.input : null;
+            if (inputText != null && input != null) {
                 try {
-                    pipedOutputStream.write((inputText + System.lineSeparator()).getBytes());
-                    pipedOutputStream.flush();
-                    SwingUtilities.invokeLater(() -> {
-                        consoleArea.append(inputText + "\n");
-                        consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
-                    });
-                    inputField.setText("");
+                    if (input.offer((inputText + System.lineSeparator()).getBytes())) {
+                        run.appendNow(inputText + "\n");
+                        inputField.setText("");
+                    } else {
+                        run.appendNow("[Input buffer full: the program is not reading its input yet]\n");
+                    }
                 } catch (IOException ex) {
-                    appendToConsole("[Error writing to program input stream: " + ex.getMessage() + "]\n");
+                    run.appendNow("[Error writing to program input stream: " + ex.getMessage() + "]\n");
                 }
             }
         });
 
         JPanel consolePanel = new JPanel(new BorderLayout());
-        consolePanel.add(consoleScrollPane, BorderLayout.CENTER);
+        consolePanel.add(consoleTabs, BorderLayout.CENTER);
         consolePanel.add(inputField, BorderLayout.SOUTH);
 
         JSplitPane splitPane = new JSplitPane(JSplitPane.VERTICAL_SPLIT, codeScrollPane, consolePanel);
@@ -102,7 +224,7 @@ public class JavaGUICompilerapp1 extends JFrame {
 
         clearConsoleButton = new JButton("Clear Console");
         clearConsoleButton.setMnemonic(KeyEvent.VK_C);
-        clearConsoleButton.addActionListener(e -> clearConsole());
+        clearConsoleButton.addActionListener(e -> clearSelectedConsole());
 
         lexicalAnalysisButton = new JButton("Lexical Analysis");
         lexicalAnalysisButton.setMnemonic(KeyEvent.VK_L);
@@ -114,7 +236,12 @@ public class JavaGUICompilerapp1 extends JFrame {
 
         errorHighlighter = new DefaultHighlighter.DefaultHighlightPainter(new Color(255, 150, 150));
 
+        fileProgress = new JProgressBar(0, 100);
+        fileProgress.setStringPainted(true);
+        fileProgress.setVisible(false);
+
         buttonPanel = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttonPanel.add(fileProgress);
         buttonPanel.add(clearConsoleButton);
         buttonPanel.add(lexicalAnalysisButton);
         buttonPanel.add(stopButton);
@@ -126,12 +253,46 @@ public class JavaGUICompilerapp1 extends JFrame {
         add(buttonPanel, BorderLayout.SOUTH);
     }
 
+    // Hooks live token data, highlighting and tab stops to the editor's document;
+    // runs again whenever the document is replaced (for example when a file is opened)
+    private void attachEditorDocument() {
+        StyledDocument document = codeArea.getStyledDocument();
+        incrementalLexer = new IncrementalLexer(document);
+        document.addDocumentListener(incrementalLexer);
+        document.addDocumentListener(tokenTableModel);
+        tokenTableModel.setLexer(incrementalLexer);
+        document.addDocumentListener(modificationTracker);
+        syntaxHighlighter.setDocument(document);
+        errorMarkers.setDocument(document);
+        document.addDocumentListener(errorGutter);
+        document.addDocumentListener(backgroundAnalysis);
+        backgroundAnalysis.restart();
+
+        int tabWidth = codeArea.getFontMetrics(codeArea.getFont()).charWidth(' ') * 4;
+        TabStop[] stops = new TabStop[100];
+        for (int i = 0; i < stops.length; i++) {
+            stops[i] = new TabStop(tabWidth * (i + 1));
+        }
+        StyleConstants.setTabSet(document.getStyle(StyleContext.DEFAULT_STYLE), new TabSet(stops));
+    }
+
+    private JTextArea newConsoleArea() {
+        JTextArea area = new JTextArea();
+        area.setEditable(false);
+        area.setFont(new Font("Monospaced", Font.PLAIN, 14));
+        area.setMargin(new Insets(5, 5, 5, 5));
+        area.setLineWrap(true);
+        area.setWrapStyleWord(true);
+        return area;
+    }
+
     private void toggleTheme() {
         isDarkTheme = !isDarkTheme;
         applyTheme();
     }
 
     private void applyTheme() {
+        syntaxHighlighter.setDarkTheme(isDarkTheme);
         if (isDarkTheme) {
             Color bg = new Color(45, 45, 45);
             Color fg = new Color(230, 230, 230);
@@ -141,11 +302,15 @@ public class JavaGUICompilerapp1 extends JFrame {
             codeArea.setForeground(fg);
             codeArea.setCaretColor(fg);
 
-            consoleArea.setBackground(Color.DARK_GRAY);
-            consoleArea.setForeground(Color.GREEN);
+            for (JTextArea area : consoleAreas()) {
+                area.setBackground(Color.DARK_GRAY);
+                area.setForeground(Color.GREEN);
+            }
 
             inputField.setBackground(bg.brighter());
             inputField.setForeground(fg);
+            tokenTable.setBackground(bg);
+            tokenTable.setForeground(fg);
 
             for (Component c : buttonPanel.getComponents()) {
                 if (c instanceof JButton) {
@@ -158,10 +323,14 @@ public class JavaGUICompilerapp1 extends JFrame {
             codeArea.setBackground(Color.WHITE);
             codeArea.setForeground(Color.BLACK);
             codeArea.setCaretColor(Color.BLACK);
-            consoleArea.setBackground(Color.BLACK);
-            consoleArea.setForeground(Color.GREEN);
+            for (JTextArea area : consoleAreas()) {
+                area.setBackground(Color.BLACK);
+                area.setForeground(Color.GREEN);
+            }
             inputField.setBackground(Color.WHITE);
             inputField.setForeground(Color.BLACK);
+            tokenTable.setBackground(UIManager.getColor("Table.background"));
+            tokenTable.setForeground(UIManager.getColor("Table.foreground"));
 
             for (Component c : buttonPanel.getComponents()) {
                 if (c instanceof JButton) {
@@ -172,43 +341,65 @@ public class JavaGUICompilerapp1 extends JFrame {
         }
     }
 
-    private void highlightErrorLine(String text) {
-        Matcher matcher = Pattern.compile("line (\\d+)").matcher(text);
-        if (matcher.find()) {
-            try {
-                int line = Integer.parseInt(matcher.group(1)) - 1;
-                int start = codeArea.getLineStartOffset(line);
-                int end = codeArea.getLineEndOffset(line);
-                codeArea.getHighlighter().removeAllHighlights();
-                codeArea.getHighlighter().addHighlight(start, end, errorHighlighter);
-                codeArea.setCaretPosition(start);
-            } catch (Exception e) {
-                // Ignore errors
-            }
-        }
+    private List<JTextArea> consoleAreas() {
+        List<JTextArea> areas = new ArrayList<>();
+        areas.add(consoleArea);
+        for (RunSession run : runSessions) areas.add(run.area);
+        return areas;
     }
 
-    private void appendToConsole(String text) {
-        SwingUtilities.invokeLater(() -> {
-            try {
-                int start = consoleArea.getDocument().getLength();
-                consoleArea.append(text);
+    // Highlights the line of the first error marker from origin and moves the caret there
+    private void highlightFirstError(ErrorMarkerIndex.Origin origin) {
+        ErrorMarkerIndex.Marker marker = errorMarkers.firstError(origin);
+        if (marker == null) return;
+        Element root = codeArea.getDocument().getDefaultRootElement();
+        Element line = root.getElement(root.getElementIndex(marker.position.getOffset()));
+        try {
+            clearErrorLineHighlight();
+            errorLineHighlight = codeArea.getHighlighter().addHighlight(line.getStartOffset(), line.getEndOffset(), errorHighlighter);
+            codeArea.setCaretPosition(line.getStartOffset());
+        } catch (BadLocationException e) {
+            // The line came from the document itself
+        }
+    }
 
-                if (text.toLowerCase().contains("error") || text.contains("Exception")) {
-                    StyleContext sc = StyleContext.getDefaultStyleContext();
-                    AttributeSet aset = sc.addAttribute(SimpleAttributeSet.EMPTY,
-                            StyleConstants.Foreground, isDarkTheme ? Color.ORANGE : Color.RED);
-                    ((StyledDocument) consoleArea.getDocument()).setCharacterAttributes(start, text.length(), aset, false);
-                    highlightErrorLine(text);
-                }
+    // Removes only the error line highlight; squiggles from the background check stay
+    private void clearErrorLineHighlight() {
+        if (errorLineHighlight != null) {
+            codeArea.getHighlighter().removeHighlight(errorLineHighlight);
+            errorLineHighlight = null;
+        }
+    }
 
-                consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
-            } catch (Exception e) {
-                e.printStackTrace();
+    // Marks the lines that diagnostics point to in the file being edited, unless another file has
+    // been opened since the compile started. Diagnostics for other files of a project are skipped.
+    private void markDiagnostics(Document document, File sourceFile, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+        SwingUtilities.invokeLater(() -> {
+            if (codeArea.getDocument() != document) return;
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+                if (d.getKind() == Diagnostic.Kind.NOTE || d.getSource() == null) continue;
+                URI uri = d.getSource().toUri();
+                // In-memory compiles have the editor as their only source
+                if ("file".equals(uri.getScheme()) && (sourceFile == null
+                        || !Paths.get(uri).normalize().equals(sourceFile.toPath().toAbsolutePath().normalize()))) continue;
+                errorMarkers.mark(ErrorMarkerIndex.Origin.COMPILE, (int) d.getLineNumber(),
+                        d.getKind() == Diagnostic.Kind.ERROR, d.getMessage(Locale.getDefault()));
             }
+            highlightFirstError(ErrorMarkerIndex.Origin.COMPILE);
         });
     }
 
+    private void appendToConsole(String text) {
+        SwingUtilities.invokeLater(() -> appendToConsoleNow(text));
+    }
+
+    // Same as appendToConsole, for callers already on the EDT. Error lines reach the editor through
+    // errorMarkers, so the text is not inspected here.
+    private void appendToConsoleNow(String text) {
+        boundedConsole.append(text);
+        consoleArea.setCaretPosition(consoleArea.getDocument().getLength());
+    }
+
     private JMenuBar createMenuBar() {
         JMenuBar menuBar = new JMenuBar();
 
@@ -217,9 +408,10 @@ public class JavaGUICompilerapp1 extends JFrame {
 
         JMenuItem newItem = createMenuItem("New", KeyEvent.VK_N, KeyStroke.getKeyStroke(KeyEvent.VK_N, InputEvent.CTRL_DOWN_MASK), e -> newFile());
         JMenuItem openItem = createMenuItem("Open...", KeyEvent.VK_O, KeyStroke.getKeyStroke(KeyEvent.VK_O, InputEvent.CTRL_DOWN_MASK), e -> openFile());
-        JMenuItem saveItem = createMenuItem("Save", KeyEvent.VK_S, KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK), e -> saveFile());
+        JMenuItem saveItem = createMenuItem("Save", KeyEvent.VK_S, KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK), e -> saveFile(null));
         JMenuItem saveAsItem = new JMenuItem("Save As...");
-        saveAsItem.addActionListener(e -> saveFileAs());
+        saveAsItem.addActionListener(e -> saveFileAs(null));
+        JMenuItem exportTokensItem = createMenuItem("Export Tokens...", 0, null, e -> exportTokens());
         JMenuItem exitItem = createMenuItem("Exit", KeyEvent.VK_X, null, e -> exitApp());
 
         fileMenu.add(newItem);
@@ -227,6 +419,7 @@ public class JavaGUICompilerapp1 extends JFrame {
         fileMenu.addSeparator();
         fileMenu.add(saveItem);
         fileMenu.add(saveAsItem);
+        fileMenu.add(exportTokensItem);
         fileMenu.addSeparator();
         fileMenu.add(exitItem);
 
@@ -238,9 +431,34 @@ public class JavaGUICompilerapp1 extends JFrame {
         viewMenu.add(createMenuItem("Light Theme", 0, null, e -> {
             if (isDarkTheme) toggleTheme();
         }));
+        viewMenu.addSeparator();
+        viewMenu.add(createMenuItem("Performance Metrics", 0, null, e -> showPerformanceMetrics()));
+
+        JMenu runMenu = new JMenu("Run");
+        runMenu.setMnemonic(KeyEvent.VK_R);
+        JCheckBoxMenuItem inMemoryItem = new JCheckBoxMenuItem("Compile from Editor Buffer", compileInMemory);
+        inMemoryItem.setToolTipText("Compile and run the editor contents in memory, without saving to disk");
+        inMemoryItem.addActionListener(e -> compileInMemory = inMemoryItem.isSelected());
+        runMenu.add(inMemoryItem);
+        JCheckBoxMenuItem checkItem = new JCheckBoxMenuItem("Check While Typing", backgroundAnalysis.isEnabled());
+        checkItem.setToolTipText("Mark compile errors in the editor a moment after you stop typing");
+        checkItem.addActionListener(e -> backgroundAnalysis.setEnabled(checkItem.isSelected()));
+        runMenu.add(checkItem);
+        runMenu.add(createMenuItem("Run with Input Files...", 0, null, e -> runWithInputFiles()));
+        runMenu.add(createMenuItem("Send File to Input...", 0, null, e -> sendFileToInput()));
+        runMenu.add(createMenuItem("End Input", 0, null, e -> endInput()));
+        runMenu.add(createMenuItem("Max Concurrent Runs...", 0, null, e -> setMaxConcurrentRuns()));
+        runMenu.add(createMenuItem("Run Limits...", 0, null, e -> editRunLimits()));
+        runMenu.add(createMenuItem("Close Finished Runs", 0, null, e -> closeFinishedRuns()));
+        runMenu.addSeparator();
+        runMenu.add(createMenuItem("Open Project Folder...", 0, null, e -> openProject()));
+        runMenu.add(createMenuItem("Close Project", 0, null, e -> closeProject()));
+        runMenu.addSeparator();
+        runMenu.add(createMenuItem("Compiler Statistics", 0, null, e -> showCompilerStatistics()));
 
         menuBar.add(fileMenu);
         menuBar.add(viewMenu);
+        menuBar.add(runMenu);
 
         return menuBar;
     }
@@ -254,490 +472,7096 @@ public class JavaGUICompilerapp1 extends JFrame {
     }
 
     private void newFile() {
-        if (confirmSave()) {
+        confirmSave(() -> {
             codeArea.setText("");
-            consoleArea.setText("");
+            clearConsole();
             currentFile = null;
-            setTitle("Java GUI Compiler");
-            codeArea.getHighlighter().removeAllHighlights();
-        }
+            modificationTracker.markSaved(modificationTracker.getRevision(), 0);
+            updateTitle();
+            clearErrorLineHighlight();
+        });
     }
 
     private void openFile() {
-        if (!confirmSave()) return;
-
-        JFileChooser fileChooser = new JFileChooser();
-        if (fileChooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+        confirmSave(() -> {
+            JFileChooser fileChooser = new JFileChooser();
+            if (fileChooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
             File file = fileChooser.getSelectedFile();
-            try (BufferedReader reader = new BufferedReader(new FileReader(file))) {
-                codeArea.read(reader, null);
+            EditorKit kit = codeArea.getEditorKit();
+            runFileTask("Opening " + file.getName(), true, progress -> EditorFiles.load(file, kit, progress), document -> {
+                codeArea.setDocument(document);
+                codeArea.setCaretPosition(0);
                 currentFile = file;
-                consoleArea.setText("");
-                setTitle("Java GUI Compiler - " + currentFile.getName());
-            } catch (IOException e) {
-                showError("Error opening file:\n" + e.getMessage());
-            }
-        }
+                clearConsole();
+                modificationTracker.markSaved(modificationTracker.getRevision(), file.lastModified());
+                updateTitle();
+            });
+        });
     }
 
-    private void saveFile() {
+    // Saves in the background, then runs then (if not null) once the file is on disk
+    private void saveFile(Runnable then) {
         if (currentFile == null) {
-            saveFileAs();
-            return;
-        }
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(currentFile))) {
-            codeArea.write(writer);
-            appendToConsole("File saved: " + currentFile.getAbsolutePath() + "\n");
-            setTitle("Java GUI Compiler - " + currentFile.getName());
-        } catch (IOException e) {
-            showError("Error saving file:\n" + e.getMessage());
+            saveFileAs(then);
+        } else {
+            saveFile(currentFile, then);
         }
     }
 
-    private void saveFileAs() {
+    // The editor only takes file as its name once the text is on disk, so a save that fails or
+    // cannot start leaves it pointing where it was
+    private void saveFile(File file, Runnable then) {
+        File previous = currentFile;
+        Document document = codeArea.getDocument();
+        CharSequence text = EditorDocument.textOf(codeArea.getDocument());
+        long revision = modificationTracker.getRevision();
+        Object eol = codeArea.getDocument().getProperty(DefaultEditorKit.EndOfLineStringProperty);
+        String lineSeparator = eol instanceof String ? (String) eol : System.lineSeparator();
+        runFileTask("Saving " + file.getName(), false, progress -> {
+            EditorFiles.save(file, text, lineSeparator, progress);
+            return file;
+        }, saved -> {
+            appendToConsole("File saved: " + saved.getAbsolutePath() + "\n");
+            // Unless another file was opened meanwhile; edits made while it was being written still count as unsaved
+            if (codeArea.getDocument() == document && currentFile == previous) {
+                currentFile = saved;
+                modificationTracker.markSaved(revision, saved.lastModified());
+            }
+            updateTitle();
+            if (then != null) then.run();
+        });
+    }
+
+    private void saveFileAs(Runnable then) {
         JFileChooser fileChooser = new JFileChooser();
         if (fileChooser.showSaveDialog(this) == JFileChooser.APPROVE_OPTION) {
             File file = fileChooser.getSelectedFile();
             if (!file.getName().endsWith(".java")) {
                 file = new File(file.getAbsolutePath() + ".java");
             }
-            currentFile = file;
-            saveFile();
+            saveFile(file, then);
+        }
+    }
+
+    // Runs a load or save on the file thread with the progress bar showing, then hands the result
+    // to done on the EDT. lockEditor keeps the editor read-only meanwhile, for loads that replace it.
+    private <T> void runFileTask(String label, boolean lockEditor, EditorFiles.Task<T> task, Consumer<T> done) {
+        if (fileTaskRunning) {
+            showError("Wait until \"" + fileProgress.getString() + "\" has finished.");
+            return;
         }
+        fileTaskRunning = true;
+        fileProgress.setValue(0);
+        fileProgress.setString(label);
+        fileProgress.setVisible(true);
+        buttonPanel.revalidate();
+        if (lockEditor) codeArea.setEditable(false);
+        fileExecutor.execute(() -> {
+            T result = null;
+            IOException error = null;
+            try {
+                result = task.call(percent -> SwingUtilities.invokeLater(() -> fileProgress.setValue(percent)));
+            } catch (IOException e) {
+                error = e;
+            }
+            T finalResult = result;
+            IOException finalError = error;
+            SwingUtilities.invokeLater(() -> {
+                fileTaskRunning = false;
+                fileProgress.setVisible(false);
+                buttonPanel.revalidate();
+                if (lockEditor) codeArea.setEditable(true);
+                if (finalError != null) showError(label + " failed:\n" + finalError.getMessage());
+                else done.accept(finalResult);
+            });
+        });
     }
 
-    private boolean confirmSave() {
-        if (!isModified()) return true;
+    // Runs proceed unless the user cancels; if they choose to save, proceed waits for the save
+    private void confirmSave(Runnable proceed) {
+        if (!isModified()) {
+            proceed.run();
+            return;
+        }
         int option = JOptionPane.showConfirmDialog(this,
                 "Current file has unsaved changes. Would you like to save?",
                 "Save Changes",
                 JOptionPane.YES_NO_CANCEL_OPTION,
                 JOptionPane.WARNING_MESSAGE);
-        if (option == JOptionPane.CANCEL_OPTION) return false;
         if (option == JOptionPane.YES_OPTION) {
-            saveFile();
-            return !isModified();
+            saveFile(proceed);
+        } else if (option == JOptionPane.NO_OPTION) {
+            proceed.run();
         }
-        return true;
     }
 
     private boolean isModified() {
-        if (currentFile == null) {
-            return !codeArea.getText().trim().isEmpty();
+        return modificationTracker.isModified() && (currentFile != null || codeArea.getDocument().getLength() > 0);
+    }
+
+    private void updateTitle() {
+        String title = currentFile == null ? "Java GUI Compiler" : "Java GUI Compiler - " + currentFile.getName();
+        setTitle(isModified() ? title + " *" : title);
+    }
+
+    private void exitApp() {
+        confirmSave(() -> {
+            compileExecutor.shutdownNow();
+            runScheduler.shutdownNow();
+            for (RunSession run : runSessions) run.stop();
+            jvmPool.shutdown();
+            fileExecutor.shutdown();
+            backgroundAnalysis.shutdown();
+            dispose();
+        });
+    }
+
+    // Clears the IDE's own console and brings it to the front
+    private void clearConsole() {
+        boundedConsole.clear();
+        consoleTabs.setSelectedIndex(0);
+    }
+
+    private void clearSelectedConsole() {
+        RunSession run = selectedRun();
+        if (run != null) run.console.clear();
+        else if (consoleTabs.getSelectedComponent() == consoleScrollPane) boundedConsole.clear();
+    }
+
+    private void startCompileAndRun() {
+        startRuns(null);
+    }
+
+    // Runs the program once per chosen file, each with that file as its stdin
+    private void runWithInputFiles() {
+        JFileChooser chooser = new JFileChooser(currentFile != null ? currentFile.getParentFile() : null);
+        chooser.setMultiSelectionEnabled(true);
+        chooser.setDialogTitle("Run with Input Files");
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION && chooser.getSelectedFiles().length > 0) {
+            startRuns(chooser.getSelectedFiles());
         }
-        try (BufferedReader reader = new BufferedReader(new FileReader(currentFile))) {
-            // Read file content line by line and reconstruct with system line separator
-            StringBuilder fileContent = new StringBuilder();
-            String line;
-            while ((line = reader.readLine()) != null) {
-                fileContent.append(line).append(System.lineSeparator());
-            }
-            // Remove trailing line separator if present for comparison
-            String fileText = fileContent.length() > 0 ? fileContent.substring(0, fileContent.length() - System.lineSeparator().length()) : "";
+    }
+
+    // Streams a file into the stdin of the program in the selected tab, after anything typed so far
+    private void sendFileToInput() {
+        RunSession run = selectedRun();
+        StdinChannel input = run != null ? run.input : null;
+        if (input == null) {
+            showError("Select the tab of a running program that reads from the input field.");
+            return;
+        }
+        JFileChooser chooser = new JFileChooser(currentFile != null ? currentFile.getParentFile() : null);
+        chooser.setDialogTitle("Send File to Input");
+        if (chooser.showOpenDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File file = chooser.getSelectedFile();
+        run.appendNow("[Sending " + file.getName() + " to input]\n");
+        input.sendFile(file, error -> run.append(error == null
+                ? "[Sent " + file.getName() + "]\n"
+                : "[Could not send " + file.getName() + ": " + error.getMessage() + "]\n"));
+    }
+
+    // Closes the selected program's stdin, for programs that read until end of input
+    private void endInput() {
+        RunSession run = selectedRun();
+        StdinChannel input = run != null ? run.input : null;
+        if (input != null) {
+            input.close();
+            run.input = null;
+            run.appendNow("[End of input]\n");
+            updateInputField();
+        }
+    }
 
-            // Get codeArea text and remove trailing line separator if present
-            String codeAreaText = codeArea.getText();
-            if (codeAreaText.endsWith(System.lineSeparator())) {
-                codeAreaText = codeAreaText.substring(0, codeAreaText.length() - System.lineSeparator().length());
+    // Compiles the program once, then queues one run per input file, or a single interactive run
+    // when inputs is null. Each run gets its own console tab; the scheduler decides when it starts.
+    private void startRuns(File[] inputs) {
+        ProjectBuilder project = projectBuilder;
+        if (project != null) {
+            // Project mode builds the folder from disk and runs the class open in the editor
+            if (currentFile == null || !project.contains(currentFile)) {
+                showError("Open the class to run from the project folder:\n" + project.getSourceRoot());
+                return;
             }
+            saveBeforeCompile(() -> queueRuns(inputs, project, null,
+                    qualifiedClassName(EditorDocument.textOf(codeArea.getDocument()), currentFile.getName().replace(".java", ""))));
+        } else if (compileInMemory) {
+            // Compile straight from the editor; the buffer does not need to be saved
+            CharSequence sourceText = EditorDocument.textOf(codeArea.getDocument());
+            queueRuns(inputs, null, sourceText, currentFile != null
+                    ? qualifiedClassName(sourceText, currentFile.getName().replace(".java", ""))
+                    : qualifiedClassName(sourceText, null));
+        } else {
+            saveBeforeCompile(() -> queueRuns(inputs, null, null, currentFile.getName().replace(".java", "")));
+        }
+    }
 
-            return !fileText.equals(codeAreaText);
-        } catch (IOException e) {
-            // If there's an error reading the file, assume it's modified to be safe
-            return true;
+    // Compiles from sourceText, or from disk when it is null, with project set in project mode
+    private void queueRuns(File[] inputs, ProjectBuilder project, CharSequence sourceText, String className) {
+        final File sourceFile = currentFile;
+        final Document document = codeArea.getDocument();
+        clearErrorLineHighlight();
+        errorMarkers.clear(ErrorMarkerIndex.Origin.COMPILE, ErrorMarkerIndex.Origin.RUN);
+
+        String simpleName = className.substring(className.lastIndexOf('.') + 1);
+        List<RunSession> runs = new ArrayList<>();
+        if (inputs == null) {
+            runs.add(openRunSession("Run " + ++runCounter + ": " + simpleName, null));
+        } else {
+            for (File input : inputs) {
+                runs.add(openRunSession("Run " + ++runCounter + ": " + simpleName + " < " + input.getName(), input));
+            }
+        }
+        // Compiled from memory, the source is named after its class, like the stack frames that point into it
+        String sourceName = sourceText == null && sourceFile != null ? sourceFile.getName() : simpleName + ".java";
+        for (RunSession run : runs) {
+            run.document = document;
+            run.sourceName = sourceName;
         }
+        consoleTabs.setSelectedComponent(runs.get(0).scrollPane);
+        inputField.requestFocusInWindow();
+
+        Consumer<String> log = text -> {
+            for (RunSession run : runs) run.append(text);
+        };
+        compileExecutor.execute(() -> {
+            for (RunSession run : runs) run.setStatus("compiling");
+            Consumer<List<Diagnostic<? extends JavaFileObject>>> diagnostics = list -> markDiagnostics(document, sourceFile, list);
+            Launch launch;
+            try {
+                launch = project != null ? buildProject(project, className, log, diagnostics)
+                        : compile(className, sourceFile, sourceText, log, diagnostics);
+            } catch (RuntimeException | Error e) {
+                // From javac or the build itself; otherwise the runs would show "compiling" for good
+                log.accept("Compilation failed: " + e + "\n");
+                for (RunSession run : runs) run.finish("failed");
+                return;
+            }
+            for (RunSession run : runs) {
+                if (launch == null) {
+                    run.finish("not run");
+                } else if (run.stopped) {
+                    run.finish("stopped");
+                } else {
+                    run.setStatus("queued");
+                    run.future = runScheduler.submit(() -> runInChildJvm(run, launch), runs.indexOf(run));
+                }
+            }
+        });
+    }
+
+    private RunSession openRunSession(String name, File stdinFile) {
+        RunSession run = new RunSession(name, stdinFile);
+        runSessions.add(run);
+        applyTheme();
+        consoleTabs.addTab(name, run.scrollPane);
+        consoleTabs.setTabComponentAt(consoleTabs.indexOfComponent(run.scrollPane), run.tabHeader);
+        return run;
     }
 
+    private void closeRunSession(RunSession run) {
+        run.stop();
+        run.console.dispose();
+        runSessions.remove(run);
+        consoleTabs.remove(run.scrollPane);
+    }
 
-    private void exitApp() {
-        if (confirmSave()) {
-            executor.shutdownNow();
-            dispose();
+    private void closeFinishedRuns() {
+        for (RunSession run : new ArrayList<>(runSessions)) {
+            if (run.finished) closeRunSession(run);
         }
     }
 
-    private void clearConsole() {
-        consoleArea.setText("");
+    private void setMaxConcurrentRuns() {
+        String answer = JOptionPane.showInputDialog(this,
+                "Programs that may run at the same time (" + runScheduler.describe() + "):", runScheduler.getLimit());
+        if (answer == null) return;
+        try {
+            int limit = Integer.parseInt(answer.trim());
+            if (limit < 1) throw new NumberFormatException();
+            runScheduler.setLimit(limit);
+        } catch (NumberFormatException e) {
+            showError("Enter a whole number of at least 1.");
+        }
     }
 
-    private void startCompileAndRun() {
-        if (runningProcess != null && !runningProcess.isDone()) {
-            JOptionPane.showMessageDialog(this,
-                    "A program is already running. Please stop it before starting another.",
-                    "Process Running",
-                    JOptionPane.WARNING_MESSAGE);
+    // Limits for runs started from now on
+    private void editRunLimits() {
+        RunLimits limits = runLimits;
+        JTextField cpuField = new JTextField(String.valueOf(limits.cpuMillis / 1000), 8);
+        JTextField wallField = new JTextField(String.valueOf(limits.wallMillis / 1000), 8);
+        JTextField heapField = new JTextField(String.valueOf(limits.heapMegabytes), 8);
+        JTextField outputField = new JTextField(String.valueOf(limits.outputBytes >> 20), 8);
+        JPanel panel = new JPanel(new GridLayout(0, 2, 8, 6));
+        panel.add(new JLabel("CPU time (seconds):"));
+        panel.add(cpuField);
+        panel.add(new JLabel("Wall clock (seconds):"));
+        panel.add(wallField);
+        panel.add(new JLabel("Heap (MB):"));
+        panel.add(heapField);
+        panel.add(new JLabel("Output (MB):"));
+        panel.add(outputField);
+        panel.add(new JLabel("0 means no limit."));
+        if (JOptionPane.showConfirmDialog(this, panel, "Run Limits", JOptionPane.OK_CANCEL_OPTION,
+                JOptionPane.PLAIN_MESSAGE) != JOptionPane.OK_OPTION) {
             return;
         }
+        try {
+            long cpu = Long.parseLong(cpuField.getText().trim());
+            long wall = Long.parseLong(wallField.getText().trim());
+            int heap = Integer.parseInt(heapField.getText().trim());
+            long output = Long.parseLong(outputField.getText().trim());
+            if (cpu < 0 || wall < 0 || output < 0 || (heap != 0 && heap < 16)) throw new NumberFormatException();
+            runLimits = new RunLimits(cpu * 1000, wall * 1000, heap, output << 20);
+            jvmPool.setHeapMegabytes(heap);
+        } catch (NumberFormatException e) {
+            showError("Enter whole numbers of 0 or more, and a heap of at least 16 MB.");
+        }
+    }
+
+    // The run shown in the selected console tab, or null for the IDE's console
+    private RunSession selectedRun() {
+        Component selected = consoleTabs.getSelectedComponent();
+        for (RunSession run : runSessions) {
+            if (run.scrollPane == selected) return run;
+        }
+        return null;
+    }
 
+    private void updateInputField() {
+        RunSession run = selectedRun();
+        inputField.setEnabled(run != null && run.input != null);
+    }
+
+    // Saves the editor contents to disk, asking for a name for a new file first, then runs then
+    private void saveBeforeCompile(Runnable then) {
         if (currentFile == null) {
             int option = JOptionPane.showConfirmDialog(this,
                     "File is not saved yet. Save before compiling?",
                     "Save File",
                     JOptionPane.YES_NO_OPTION);
-            if (option == JOptionPane.YES_OPTION) {
-                saveFile();
-                if (currentFile == null) { // Check again if saveFile was successful
-                    showError("Please save the file before compiling.");
-                    return;
-                }
-            } else {
+            if (option != JOptionPane.YES_OPTION) {
                 showError("Please save the file before compiling.");
                 return;
             }
-        }
-
-        // Ensure the file content in the editor is saved to disk before compilation
-        try (BufferedWriter writer = new BufferedWriter(new FileWriter(currentFile))) {
-            codeArea.write(writer);
-        } catch (IOException e) {
-            showError("Error saving file before compilation:\n" + e.getMessage());
+        } else if (!isModified() && currentFile.lastModified() == modificationTracker.getSavedLastModified()) {
+            then.run(); // Already on disk as it is in the editor
             return;
         }
+        saveFile(then);
+    }
 
-        final String className = currentFile.getName().replace(".java", "");
-        clearConsole();
-        codeArea.getHighlighter().removeAllHighlights(); // Clear previous error highlights
-
+    // Binary name of the class to run: the given simple name, or the first public top-level type
+    // (else the first type) declared in the source, qualified with the source's package
+    private static String qualifiedClassName(CharSequence source, String simpleName) {
+        Lexer lexer = new Lexer();
+        lexer.setLenient(true);
+        lexer.reset(source, 0, 1, 0);
+        StringBuilder packageName = new StringBuilder();
+        String firstType = null;
+        String publicType = null;
+        boolean inPackage = false;
+        boolean sawPublic = false;
+        boolean expectTypeName = false;
+        int depth = 0;
         try {
-            // Close existing streams if any
-            if (pipedOutputStream != null) pipedOutputStream.close();
-            if (pipedInputStream != null) pipedInputStream.close();
-
-            // Set up new piped streams for System.in redirection
-            pipedOutputStream = new PipedOutputStream();
-            pipedInputStream = new PipedInputStream(pipedOutputStream);
-            System.setIn(pipedInputStream);
-            inputField.setEnabled(true);
-            inputField.requestFocusInWindow();
-        } catch (IOException e) {
-            appendToConsole("[Error setting up input stream: " + e.getMessage() + "]\n");
-            inputField.setEnabled(false);
-        }
-
-        runningProcess = executor.submit(() -> {
-            compileAndRun(className);
-            SwingUtilities.invokeLater(() -> {
-                inputField.setEnabled(false);
-                try {
-                    // Restore original System.in after execution
-                    System.setIn(originalSystemIn);
-                    if (pipedOutputStream != null) pipedOutputStream.close();
-                    if (pipedInputStream != null) pipedInputStream.close();
-                } catch (IOException e) {
-                    appendToConsole("[Error restoring System.in: " + e.getMessage() + "]\n");
+            while (lexer.nextToken()) {
+                String value = source.subSequence(lexer.tokenStart, lexer.tokenStart + lexer.tokenLength).toString();
+                if (inPackage) {
+                    if (value.equals(";")) inPackage = false;
+                    else packageName.append(value);
+                } else if (expectTypeName) {
+                    expectTypeName = false;
+                    if (lexer.tokenType == TokenType.IDENTIFIER) {
+                        if (firstType == null) firstType = value;
+                        if (sawPublic && publicType == null) publicType = value;
+                    }
+                    sawPublic = false;
+                } else if (value.equals("{")) {
+                    depth++;
+                } else if (value.equals("}")) {
+                    depth--;
+                } else if (depth == 0 && lexer.tokenType == TokenType.KEYWORD) {
+                    if (value.equals("package")) inPackage = true;
+                    else if (value.equals("public")) sawPublic = true;
+                    else if (value.equals("class") || value.equals("interface") || value.equals("enum")) expectTypeName = true;
+                } else if (depth == 0 && value.equals(";")) {
+                    sawPublic = false;
                 }
-            });
-        });
+            }
+        } catch (ParseException e) {
+            // Not thrown in lenient mode
+        }
+        String name = simpleName != null ? simpleName : publicType != null ? publicType : firstType != null ? firstType : "Main";
+        return packageName.length() > 0 ? packageName + "." + name : name;
     }
 
+    // Stops the run in the selected tab, or the latest active run when the IDE's console is selected
     private void stopRunningProcess() {
-        if (runningProcess != null && !runningProcess.isDone()) {
-            runningProcess.cancel(true); // Interrupt the running thread
-            appendToConsole("\nExecution stopped by user.\n");
-            try {
-                if (pipedOutputStream != null) pipedOutputStream.close();
-                if (pipedInputStream != null) pipedInputStream.close();
-            } catch (IOException e) {
-                appendToConsole("[Error closing input streams: " + e.getMessage() + "]\n");
-            }
-            inputField.setEnabled(false);
-            try {
-                System.setIn(originalSystemIn); // Restore original System.in
-            } catch (Exception e) {
-                appendToConsole("[Error restoring System.in after stop: " + e.getMessage() + "]\n");
+        RunSession run = selectedRun();
+        if (run == null) {
+            for (RunSession candidate : runSessions) {
+                if (!candidate.finished) run = candidate;
             }
+        }
+        if (run != null && !run.finished) {
+            run.stop();
         } else {
             JOptionPane.showMessageDialog(this, "No running program to stop.", "Stop", JOptionPane.INFORMATION_MESSAGE);
         }
     }
 
-    private void compileAndRun(String className) {
-        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-        if (compiler == null) {
+    // Compiles sourceText in memory when it is non-null, otherwise sourceFile from disk. Returns what
+    // to run, or null if compilation failed.
+    private Launch compile(String className, File sourceFile, CharSequence sourceText, Consumer<String> log,
+                           Consumer<List<Diagnostic<? extends JavaFileObject>>> diagnostics) {
+        if (compilerService == null) {
             SwingUtilities.invokeLater(() -> showError("No Java compiler available. Run this app with a JDK, not a JRE."));
-            return;
+            return null;
         }
+        return compileProgram(compilerService, className, sourceFile, sourceText, log, diagnostics);
+    }
 
-        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
-        StandardJavaFileManager fileManager = compiler.getStandardFileManager(diagnostics, Locale.getDefault(), null);
-        Iterable<? extends JavaFileObject> units = fileManager.getJavaFileObjectsFromFiles(Collections.singletonList(currentFile));
-        CompilationTask task = compiler.getTask(null, fileManager, diagnostics, null, null, units);
-
-        appendToConsole("Starting compilation...\n");
+    // The compile step shared by the GUI and batch mode. Every diagnostic, warnings included, also
+    // goes to diagnostics when it is non-null.
+    private static Launch compileProgram(CompilerService compilerService, String className, File sourceFile,
+                                         CharSequence sourceText, Consumer<String> log,
+                                         Consumer<List<Diagnostic<? extends JavaFileObject>>> diagnostics) {
+        log.accept("Starting compilation...\n");
 
-        boolean success = task.call(); // Perform compilation
+        PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.COMPILE);
+        CompilerService.Result result = sourceText != null
+                ? compilerService.compileInMemory(className, sourceText)
+                : compilerService.compileFile(sourceFile);
+        timer.stop((result.isCached() ? "cached " : "") + className);
+        if (diagnostics != null) diagnostics.accept(result.getDiagnostics());
 
-        try {
-            fileManager.close();
-        } catch (IOException ignored) {
-            // Ignore closing errors
+        if (!result.isSuccess()) {
+            log.accept("Compilation failed:\n");
+            for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics()) {
+                log.accept(formatDiagnostic(d) + "\n");
+            }
+            return null;
         }
+        log.accept(result.isCached() ? "Source unchanged since it last compiled; reusing those classes.\n\n"
+                : "Compilation successful (" + result.getMillis() + " ms).\n\n");
+        if (result.getClassBytes() != null) {
+            return new Launch(className, Collections.<File>emptyList(), result.getClassBytes());
+        }
+        // Classes were written next to the source file
+        return new Launch(className, Collections.singletonList(sourceFile.getParentFile()), Collections.<String, byte[]>emptyMap());
+    }
 
-        if (!success) {
-            appendToConsole("Compilation failed:\n");
-            for (Diagnostic<? extends JavaFileObject> d : diagnostics.getDiagnostics()) {
-                appendToConsole(formatDiagnostic(d) + "\n");
-            }
+    private void openProject() {
+        if (compilerService == null) {
+            showError("No Java compiler available. Run this app with a JDK, not a JRE.");
             return;
         }
-        appendToConsole("Compilation successful.\n\n");
-        runCompiledClass(className);
+        JFileChooser chooser = new JFileChooser(currentFile != null ? currentFile.getParentFile() : null);
+        chooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+        chooser.setDialogTitle("Open Project Folder");
+        if (chooser.showOpenDialog(this) == JFileChooser.APPROVE_OPTION) {
+            projectBuilder = new ProjectBuilder(chooser.getSelectedFile(), compilerService);
+            backgroundAnalysis.restart();
+            appendToConsole("Project: " + projectBuilder.getSourceRoot() + "\n"
+                    + "Compile & Run builds the whole folder into " + projectBuilder.getOutputDir() + "\n");
+        }
     }
 
-    // Helper method to format compiler diagnostics
-    private String formatDiagnostic(Diagnostic<? extends JavaFileObject> diagnostic) {
-        StringBuilder sb = new StringBuilder();
-        sb.append(diagnostic.getKind()).append(": ");
-        if (diagnostic.getSource() != null) {
-            sb.append(diagnostic.getSource().getName()).append(":");
+    private void closeProject() {
+        if (projectBuilder != null) {
+            appendToConsole("Closed project " + projectBuilder.getSourceRoot() + "\n");
+            projectBuilder = null;
+            backgroundAnalysis.restart();
         }
-        sb.append(diagnostic.getLineNumber()).append(": ");
-        sb.append(diagnostic.getMessage(Locale.getDefault()));
-        return sb.toString();
     }
 
-    private void runCompiledClass(String className) {
-        // Redirect System.out and System.err to the consoleArea
-        PrintStream psConsole = new PrintStream(new ConsoleOutputStream(), true);
-        PrintStream originalOut = System.out;
-        PrintStream originalErr = System.err;
-
+    private Launch buildProject(ProjectBuilder project, String className, Consumer<String> log,
+                                Consumer<List<Diagnostic<? extends JavaFileObject>>> diagnostics) {
+        log.accept("Building project " + project.getSourceRoot() + "...\n");
+        ProjectBuilder.BuildResult result;
+        PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.COMPILE);
         try {
-            System.setOut(psConsole);
-            System.setErr(psConsole);
-
-            // Create a URLClassLoader to load the compiled class from the current file's directory
-            URLClassLoader classLoader = URLClassLoader.newInstance(
-                    new URL[]{currentFile.getParentFile().toURI().toURL()}
-            );
-            Class<?> clazz = Class.forName(className, true, classLoader);
-            // Get the main method (public static void main(String[] args))
-            Method mainMethod = clazz.getMethod("main", String[].class); // ✅ FIXED
-
-            appendToConsole("=== Running " + className + ".main ===\n\n");
-
-            try {
-                // Invoke the main method with an empty String array
-                mainMethod.invoke(null, (Object) new String[0]);
-            } catch (InvocationTargetException ex) {
-                // If the user's program throws an exception, unwrap it and print its stack trace
-                Throwable cause = ex.getCause();
-                appendToConsole("\nException in user program:\n");
-                StringWriter sw = new StringWriter();
-                cause.printStackTrace(new PrintWriter(sw));
-                appendToConsole(sw.toString());
-            }
-
-            appendToConsole("\n=== Execution finished ===\n");
-        } catch (ClassNotFoundException e) {
-            appendToConsole("Class not found: " + e.getMessage() + "\n");
-        } catch (NoSuchMethodException e) {
-            appendToConsole("main(String[] args) method not found.\n");
-        } catch (MalformedURLException e) {
-            appendToConsole("Error loading class files: " + e.getMessage() + "\n");
-        } catch (Exception e) {
-            appendToConsole("Error during execution: " + e.getMessage() + "\n");
+            result = project.build();
+        } catch (IOException e) {
+            log.accept("Build error: " + e.getMessage() + "\n");
+            return null;
         } finally {
-            // Restore original System.out and System.err
-            System.setOut(originalOut);
-            System.setErr(originalErr);
+            timer.stop("project " + project.getSourceRoot().getName());
+        }
+        diagnostics.accept(result.getDiagnostics());
+        for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics()) {
+            log.accept(formatDiagnostic(d) + "\n");
         }
+        if (!result.isSuccess()) {
+            log.accept("Build failed: " + result.describe() + "\n");
+            return null;
+        }
+        log.accept(result.describe() + "\n\n");
+        return new Launch(className, Collections.singletonList(project.getOutputDir()), Collections.<String, byte[]>emptyMap());
     }
 
-    // Custom OutputStream to redirect System.out/err to JTextArea
-    private class ConsoleOutputStream extends OutputStream {
-        @Override
-        public void write(int b) throws IOException {
-            appendToConsole(String.valueOf((char) b));
+    // Totals per phase from PhaseMetrics, refreshed twice a second while the window is showing
+    private void showPerformanceMetrics() {
+        if (metricsDialog != null) {
+            metricsDialog.setVisible(true);
+            metricsDialog.toFront();
+            return;
         }
+        String[] columns = {"Phase", "Count", "Total ms", "Mean ms", "Max ms", "CPU ms", "Allocated"};
+        javax.swing.table.DefaultTableModel model = new javax.swing.table.DefaultTableModel(PhaseMetrics.INSTANCE.summary(), columns) {
+            @Override
+            public boolean isCellEditable(int row, int column) {
+                return false;
+            }
+        };
+        javax.swing.Timer refresh = new javax.swing.Timer(500, e -> {
+            Object[][] rows = PhaseMetrics.INSTANCE.summary();
+            for (int row = 0; row < rows.length; row++) {
+                for (int column = 1; column < columns.length; column++) model.setValueAt(rows[row][column], row, column);
+            }
+        });
 
-        @Override
-        public void write(byte[] b, int off, int len) throws IOException {
-            appendToConsole(new String(b, off, len));
-        }
-    }
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(e -> {
+            PhaseMetrics.INSTANCE.reset();
+            refresh.getActionListeners()[0].actionPerformed(null);
+        });
+        JButton exportButton = new JButton("Export JSON...");
+        exportButton.addActionListener(e -> exportMetrics());
+        JButton closeButton = new JButton("Close");
+        closeButton.addActionListener(e -> metricsDialog.setVisible(false));
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.RIGHT));
+        buttons.add(resetButton);
+        buttons.add(exportButton);
+        buttons.add(closeButton);
 
-    private void showError(String message) {
-        JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
+        JLabel note = new JLabel("CPU and allocation are per thread; Run CPU is the program's JVM. Phases are also JFR events (JavaGUICompiler.Phase).");
+        note.setBorder(BorderFactory.createEmptyBorder(4, 6, 4, 6));
+        metricsDialog = new JDialog(this, "Performance Metrics", false);
+        metricsDialog.add(note, BorderLayout.NORTH);
+        metricsDialog.add(new JScrollPane(new JTable(model)), BorderLayout.CENTER);
+        metricsDialog.add(buttons, BorderLayout.SOUTH);
+        metricsDialog.addComponentListener(new ComponentAdapter() {
+            @Override
+            public void componentShown(ComponentEvent e) {
+                refresh.start();
+            }
+
+            @Override
+            public void componentHidden(ComponentEvent e) {
+                refresh.stop();
+            }
+        });
+        metricsDialog.setSize(760, 240);
+        metricsDialog.setLocationRelativeTo(this);
+        metricsDialog.setVisible(true);
     }
 
-    private void performLexicalAnalysis() {
-        clearConsole();
-        codeArea.getHighlighter().removeAllHighlights(); // Clear any existing highlights
+    private void exportMetrics() {
+        JFileChooser chooser = new JFileChooser(currentFile != null ? currentFile.getParentFile() : null);
+        chooser.setDialogTitle("Export Metrics");
+        chooser.setSelectedFile(new File("metrics.json"));
+        if (chooser.showSaveDialog(metricsDialog) != JFileChooser.APPROVE_OPTION) return;
+        File file = chooser.getSelectedFile();
+        String json = PhaseMetrics.INSTANCE.toJson();
+        runFileTask("Exporting metrics", false, progress -> {
+            Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+            return file;
+        }, exported -> appendToConsole("Metrics exported to " + exported.getAbsolutePath() + "\n"));
+    }
 
-        String sourceCode = codeArea.getText();
-        Lexer lexer = new Lexer();
-        try {
-            List<Token> tokens = lexer.tokenize(sourceCode);
-            appendToConsole("Lexical Analysis Results:\n");
-            appendToConsole("--------------------------\n");
-            for (Token token : tokens) {
-                appendToConsole(String.format("Line %d, Col %d: %-15s -> \"%s\"\n",
-                        token.getLineNumber(), token.getColumnNumber(), token.getType(), token.getValue()));
-            }
-            appendToConsole("\nLexical analysis completed successfully.\n");
-        } catch (ParseException e) {
-            appendToConsole("Lexical Analysis Failed:\n");
-            appendToConsole(e.getMessage() + "\n");
-            // Attempt to highlight the error line if possible
-            highlightErrorLine(e.getMessage());
-        } catch (Exception e) {
-            appendToConsole("An unexpected error occurred during lexical analysis:\n");
-            appendToConsole(e.getMessage() + "\n");
-            e.printStackTrace();
+    private void showCompilerStatistics() {
+        if (compilerService == null) {
+            showError("No Java compiler available. Run this app with a JDK, not a JRE.");
+            return;
         }
+        JOptionPane.showMessageDialog(this, compilerService.describeMetrics(), "Compiler Statistics",
+                JOptionPane.INFORMATION_MESSAGE);
     }
 
-    // Simple Token class to hold lexical analysis results
-    private static class Token {
-        private final String type;
-        private final String value;
-        private final int lineNumber;
-        private final int columnNumber;
+    // Low-overhead timers for the phases of an edit-compile-run cycle. A timer reads the thread's
+    // CPU time and allocated bytes from the ThreadMXBean when it starts and stops, and each sample
+    // is also emitted as a JFR event (JavaGUICompiler.Phase), which costs next to nothing unless a
+    // recording is running. Totals per phase and the latest samples feed the metrics panel and its
+    // JSON export. Work done in the program's JVM is measured there and recorded as reported.
+    private static class PhaseMetrics {
+        static final PhaseMetrics INSTANCE = new PhaseMetrics();
+        private static final int RECENT_SAMPLES = 500;
 
-        public Token(String type, String value, int lineNumber, int columnNumber) {
-            this.type = type;
-            this.value = value;
-            this.lineNumber = lineNumber;
-            this.columnNumber = columnNumber;
-        }
+        enum Phase {
+            COMPILE("Compile"), CLASS_LOAD("Class load"), RUN("Run"), LEX("Lex"), CONSOLE_FLUSH("Console flush"),
+            ANALYZE("Background check");
 
-        public String getType() {
-            return type;
+            final String label;
+
+            Phase(String label) {
+                this.label = label;
+            }
         }
 
-        public String getValue() {
-            return value;
+        private final java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        private final com.sun.management.ThreadMXBean allocations;
+        private final boolean cpuTimeSupported;
+        private final long startMillis = System.currentTimeMillis();
+        private final Totals[] totals = new Totals[Phase.values().length];
+        private final ArrayDeque<Sample> recent = new ArrayDeque<>();
+
+        // Per phase; -1 in a sample means the value was not measured
+        private static final class Totals {
+            long count;
+            long wallNanos;
+            long maxWallNanos;
+            long cpuNanos;
+            long allocatedBytes;
         }
 
-        public int getLineNumber() {
-            return lineNumber;
+        private static final class Sample {
+            final Phase phase;
+            final long endMillis;
+            final long wallNanos;
+            final long cpuNanos;
+            final long allocatedBytes;
+            final String detail;
+
+            Sample(Phase phase, long endMillis, long wallNanos, long cpuNanos, long allocatedBytes, String detail) {
+                this.phase = phase;
+                this.endMillis = endMillis;
+                this.wallNanos = wallNanos;
+                this.cpuNanos = cpuNanos;
+                this.allocatedBytes = allocatedBytes;
+                this.detail = detail;
+            }
         }
 
-        public int getColumnNumber() {
-            return columnNumber;
+        @jdk.jfr.Name("JavaGUICompiler.Phase")
+        @jdk.jfr.Label("IDE Phase")
+        @jdk.jfr.Category("Java GUI Compiler")
+        private static final class PhaseEvent extends jdk.jfr.Event {
+            @jdk.jfr.Label("Phase")
+            String phase;
+            @jdk.jfr.Label("Detail")
+            String detail;
+            @jdk.jfr.Label("Elapsed")
+            @jdk.jfr.Timespan
+            long elapsed;
+            @jdk.jfr.Label("CPU Time")
+            @jdk.jfr.Timespan
+            long cpuTime;
+            @jdk.jfr.Label("Allocated")
+            @jdk.jfr.DataAmount
+            long allocated;
         }
 
-        @Override
-        public String toString() {
-            return "Token{" +
-                    "type='" + type + '\'' +
-                    ", value='" + value + '\'' +
-                    ", lineNumber=" + lineNumber +
-                    ", columnNumber=" + columnNumber +
-                    '}';
+        private PhaseMetrics() {
+            for (int i = 0; i < totals.length; i++) totals[i] = new Totals();
+            boolean cpu = false;
+            try {
+                cpu = threads.isCurrentThreadCpuTimeSupported();
+                if (cpu && !threads.isThreadCpuTimeEnabled()) threads.setThreadCpuTimeEnabled(true);
+            } catch (UnsupportedOperationException | SecurityException e) {
+                cpu = false;
+            }
+            cpuTimeSupported = cpu;
+            com.sun.management.ThreadMXBean allocationBean = null;
+            if (threads instanceof com.sun.management.ThreadMXBean) {
+                allocationBean = (com.sun.management.ThreadMXBean) threads;
+                try {
+                    if (!allocationBean.isThreadAllocatedMemorySupported()) allocationBean = null;
+                    else if (!allocationBean.isThreadAllocatedMemoryEnabled()) allocationBean.setThreadAllocatedMemoryEnabled(true);
+                } catch (UnsupportedOperationException | SecurityException e) {
+                    allocationBean = null;
+                }
+            }
+            allocations = allocationBean;
         }
-    }
 
-    // Lexer class for tokenizing Java source code
-    private static class Lexer {
-        private static final String KEYWORD_REGEX = "\\b(abstract|assert|boolean|break|byte|case|catch|char|class|const|continue|default|do|double|else|enum|extends|final|finally|float|for|goto|if|implements|import|instanceof|int|interface|long|native|new|package|private|protected|public|return|short|static|strictfp|super|switch|synchronized|this|throw|throws|transient|try|void|volatile|while)\\b";
-        private static final String BOOLEAN_REGEX = "\\b(true|false)\\b";
-        private static final String NULL_REGEX = "\\b(null)\\b";
-        private static final String IDENTIFIER_REGEX = "[a-zA-Z_$][a-zA-Z0-9_$]*";
-        private static final String NUMBER_REGEX = "\\b-?\\d+(\\.\\d+)?([eE][+\\-]?\\d+)?\\b";
-        private static final String STRING_LITERAL_REGEX = "\"(\\\\.|[^\"\\\\])*?\"";  // ✅ FIXED
-        private static final String CHAR_LITERAL_REGEX = "'(\\\\.|[^'\\\\])'";        // ✅ FIXED
-        private static final String OPERATOR_REGEX = "(\\+\\+|--|<<=|>>=|>>>=|\\+=|-=|\\*=|/=|%=|&=|\\^=|\\|=|==|!=|<=|>=|&&|\\|\\||<<|>>|>>>|[+\\-*/%=!&|^<>]|\\.)";
-        private static final String PUNCTUATION_REGEX = "[(){}\\[\\],;]";             // ✅ FIXED (removed incorrect '$')
-
-        private static final String MULTI_LINE_COMMENT_REGEX = "/\\*.*?\\*/";
-        private static final String SINGLE_LINE_COMMENT_REGEX = "//.*";
-        private static final String WHITESPACE_REGEX = "\\s+";
-
-        // The order of these patterns matters for correct tokenization
-        private static final Pattern TOKEN_PATTERN = Pattern.compile(
-                "(" + MULTI_LINE_COMMENT_REGEX + ")" + // Group 1: Multi-line comments
-                        "|(" + SINGLE_LINE_COMMENT_REGEX + ")" + // Group 2: Single-line comments
-                        "|(" + WHITESPACE_REGEX + ")" + // Group 3: Whitespace
-                        "|(" + KEYWORD_REGEX + ")" + // Group 4: Keywords
-                        "|(" + BOOLEAN_REGEX + ")" + // Group 5: Boolean literals
-                        "|(" + NULL_REGEX + ")" + // Group 6: Null literal
-                        "|(" + STRING_LITERAL_REGEX + ")" + // Group 7: String literals
-                        "|(" + CHAR_LITERAL_REGEX + ")" + // Group 8: Character literals
-                        "|(" + NUMBER_REGEX + ")" + // Group 9: Number literals
-                        "|(" + OPERATOR_REGEX + ")" + // Group 10: Operators
-                        "|(" + PUNCTUATION_REGEX + ")" + // Group 11: Punctuation
-                        "|(" + IDENTIFIER_REGEX + ")" + // Group 12: Identifiers (should be after keywords)
-                        "|(.)", Pattern.DOTALL // Group 13: Catch-all for any unrecognized character
-        );
+        // Measures work done on the calling thread until stop is called on the same thread
+        Timer start(Phase phase) {
+            return new Timer(phase);
+        }
 
-        public List<Token> tokenize(String sourceCode) throws ParseException {
-            List<Token> tokens = new ArrayList<>();
-            int currentPosition = 0;
-            int lineNumber = 1;
-            int lineStartOffset = 0; // Offset of the start of the current line
+        final class Timer {
+            private final Phase phase;
+            private final PhaseEvent event = new PhaseEvent();
+            private final long startNanos;
+            private final long startCpuNanos;
+            private final long startAllocated;
 
-            Matcher matcher = TOKEN_PATTERN.matcher(sourceCode);
+            private Timer(Phase phase) {
+                this.phase = phase;
+                event.begin();
+                startCpuNanos = threadCpuNanos();
+                startAllocated = threadAllocatedBytes();
+                startNanos = System.nanoTime();
+            }
 
-            while (matcher.find(currentPosition)) {
-                String tokenValue = matcher.group();
-                int start = matcher.start();
-                int end = matcher.end();
+            void stop(String detail) {
+                long wall = System.nanoTime() - startNanos;
+                long cpu = startCpuNanos < 0 ? -1 : threadCpuNanos() - startCpuNanos;
+                long allocated = startAllocated < 0 ? -1 : threadAllocatedBytes() - startAllocated;
+                event.end();
+                add(phase, wall, cpu, allocated, detail, event);
+            }
 
-                // Update line number and lineStartOffset based on newlines encountered
-                for (int i = currentPosition; i < start; i++) {
-                    if (sourceCode.charAt(i) == '\n') {
-                        lineNumber++;
-                        lineStartOffset = i + 1;
+            // For work that ran somewhere else, such as in the program's JVM; -1 where unknown
+            void stop(long cpuNanos, long allocatedBytes, String detail) {
+                event.end();
+                add(phase, System.nanoTime() - startNanos, cpuNanos, allocatedBytes, detail, event);
+            }
+        }
+
+        // Records a phase that was timed elsewhere
+        void record(Phase phase, long wallNanos, long cpuNanos, long allocatedBytes, String detail) {
+            add(phase, wallNanos, cpuNanos, allocatedBytes, detail, new PhaseEvent());
+        }
+
+        private void add(Phase phase, long wallNanos, long cpuNanos, long allocatedBytes, String detail, PhaseEvent event) {
+            if (event.shouldCommit()) {
+                event.phase = phase.label;
+                event.detail = detail;
+                event.elapsed = wallNanos;
+                event.cpuTime = cpuNanos;
+                event.allocated = allocatedBytes;
+                event.commit();
+            }
+            Sample sample = new Sample(phase, System.currentTimeMillis(), wallNanos, cpuNanos, allocatedBytes, detail);
+            synchronized (this) {
+                Totals total = totals[phase.ordinal()];
+                total.count++;
+                total.wallNanos += wallNanos;
+                total.maxWallNanos = Math.max(total.maxWallNanos, wallNanos);
+                if (cpuNanos > 0) total.cpuNanos += cpuNanos;
+                if (allocatedBytes > 0) total.allocatedBytes += allocatedBytes;
+                if (recent.size() == RECENT_SAMPLES) recent.removeFirst();
+                recent.addLast(sample);
+            }
+        }
+
+        private long threadCpuNanos() {
+            return cpuTimeSupported ? threads.getCurrentThreadCpuTime() : -1;
+        }
+
+        private long threadAllocatedBytes() {
+            return allocations != null ? allocations.getThreadAllocatedBytes(Thread.currentThread().getId()) : -1;
+        }
+
+        synchronized void reset() {
+            for (int i = 0; i < totals.length; i++) totals[i] = new Totals();
+            recent.clear();
+        }
+
+        // One row per phase: phase, count, total ms, mean ms, max ms, CPU ms, allocated
+        synchronized Object[][] summary() {
+            Object[][] rows = new Object[totals.length][];
+            for (Phase phase : Phase.values()) {
+                Totals total = totals[phase.ordinal()];
+                rows[phase.ordinal()] = new Object[] {
+                        phase.label,
+                        total.count,
+                        millis(total.wallNanos),
+                        total.count == 0 ? "-" : millis(total.wallNanos / total.count),
+                        millis(total.maxWallNanos),
+                        millis(total.cpuNanos),
+                        formatBytes(total.allocatedBytes)};
+            }
+            return rows;
+        }
+
+        private static String millis(long nanos) {
+            return String.format("%.1f", nanos / 1e6);
+        }
+
+        synchronized String toJson() {
+            StringBuilder json = new StringBuilder();
+            json.append("{\n  \"startedAt\": ").append(startMillis);
+            json.append(",\n  \"exportedAt\": ").append(System.currentTimeMillis());
+            json.append(",\n  \"threadCpuTimeSupported\": ").append(cpuTimeSupported);
+            json.append(",\n  \"threadAllocationSupported\": ").append(allocations != null);
+            json.append(",\n  \"phases\": [");
+            for (Phase phase : Phase.values()) {
+                Totals total = totals[phase.ordinal()];
+                json.append(phase.ordinal() == 0 ? "\n" : ",\n");
+                json.append("    {\"phase\": \"").append(phase.name().toLowerCase()).append('"');
+                json.append(", \"count\": ").append(total.count);
+                json.append(", \"wallNanos\": ").append(total.wallNanos);
+                json.append(", \"maxWallNanos\": ").append(total.maxWallNanos);
+                json.append(", \"cpuNanos\": ").append(total.cpuNanos);
+                json.append(", \"allocatedBytes\": ").append(total.allocatedBytes).append('}');
+            }
+            json.append("\n  ],\n  \"recent\": [");
+            boolean first = true;
+            for (Sample sample : recent) {
+                json.append(first ? "\n" : ",\n");
+                first = false;
+                json.append("    {\"phase\": \"").append(sample.phase.name().toLowerCase()).append('"');
+                json.append(", \"endedAt\": ").append(sample.endMillis);
+                json.append(", \"wallNanos\": ").append(sample.wallNanos);
+                json.append(", \"cpuNanos\": ").append(sample.cpuNanos);
+                json.append(", \"allocatedBytes\": ").append(sample.allocatedBytes);
+                json.append(", \"detail\": ");
+                if (sample.detail == null) json.append("null");
+                else Json.appendString(json, sample.detail);
+                json.append('}');
+            }
+            json.append(first ? "]\n}\n" : "\n  ]\n}\n");
+            return json.toString();
+        }
+    }
+
+    // Tells whether the editor differs from the file in O(1): every insert or removal bumps a
+    // revision number, and the file matches the revision recorded at the last load or save.
+    // Undoing back to the saved text still counts as modified. Also keeps the file's
+    // last-modified time from then, to notice when it was changed outside the editor.
+    // Used on the EDT only.
+    private static class ModificationTracker implements DocumentListener {
+        private final Runnable onChange;
+        private long revision;
+        private long savedRevision;
+        private long savedLastModified;
+
+        ModificationTracker(Runnable onChange) {
+            this.onChange = onChange;
+        }
+
+        long getRevision() {
+            return revision;
+        }
+
+        long getSavedLastModified() {
+            return savedLastModified;
+        }
+
+        boolean isModified() {
+            return revision != savedRevision;
+        }
+
+        void markSaved(long revision, long lastModified) {
+            savedRevision = revision;
+            savedLastModified = lastModified;
+        }
+
+        private void changed() {
+            boolean wasModified = isModified();
+            revision++;
+            if (!wasModified) onChange.run(); // Only on the first edit after a save, not every keystroke
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            changed();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            changed();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes from highlighting are not edits
+        }
+    }
+
+    // Editor document whose text is a PieceTableContent, so background work can take an O(1)
+    // snapshot of the text instead of copying it
+    @SuppressWarnings("serial")
+    private static class EditorDocument extends DefaultStyledDocument {
+        private final PieceTableContent content;
+
+        EditorDocument() {
+            this(new PieceTableContent());
+        }
+
+        private EditorDocument(PieceTableContent content) {
+            super(content, new StyleContext());
+            this.content = content;
+        }
+
+        // The text as it is now, unaffected by later edits. Call on the EDT or inside render().
+        CharSequence snapshot() {
+            return content.snapshot(0, getLength());
+        }
+
+        // A snapshot where the document supports one, otherwise a copy
+        static CharSequence textOf(Document document) {
+            if (document instanceof EditorDocument) return ((EditorDocument) document).snapshot();
+            try {
+                return document.getText(0, document.getLength());
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e); // The whole document is always in range
+            }
+        }
+    }
+
+    @SuppressWarnings("serial")
+    private static class EditorDocumentKit extends StyledEditorKit {
+        @Override
+        public Document createDefaultDocument() {
+            return new EditorDocument();
+        }
+    }
+
+    // Document content kept as a piece table: the text is a sequence of pieces, each a range of
+    // a read-only buffer (text inserted in one large block keeps its own buffer, smaller inserts
+    // are appended to a shared one). The pieces sit in a persistent treap keyed by position, so
+    // inserts and removals rebuild only the O(log n) nodes on one path and every old root stays
+    // a valid, unchanging view of the text: a snapshot is just the root. Positions follow the
+    // same rules as GapContent's, and like there, marks after the last edit point are stored
+    // relative to a shared shift, so an edit only touches the marks between it and the previous
+    // one.
+    private static class PieceTableContent implements AbstractDocument.Content {
+        private static final int OWN_BUFFER_THRESHOLD = 1 << 16;
+        private static final char[] EMPTY = new char[0];
+
+        private Node root = new Node(new char[] {'\n'}, 0, 1, randomPriority(), null, null); // Content always ends in \n
+        private char[] addBuffer = new char[1024];
+        private int addLength;
+
+        private Mark[] marks = new Mark[16]; // Sorted by offset
+        private int markCount;
+        private int split;                   // marks[split..] are stored relative to shift
+        private int shift;
+        private final ReferenceQueue<MarkPosition> collected = new ReferenceQueue<>();
+        private int unusedMarks;
+
+        // An immutable treap node for one piece; total is the length of the whole subtree
+        private static final class Node {
+            final char[] buffer;
+            final int start;
+            final int length;
+            final int priority;
+            final Node left;
+            final Node right;
+            final int total;
+
+            Node(char[] buffer, int start, int length, int priority, Node left, Node right) {
+                this.buffer = buffer;
+                this.start = start;
+                this.length = length;
+                this.priority = priority;
+                this.left = left;
+                this.right = right;
+                this.total = total(left) + length + total(right);
+            }
+
+            Node with(Node newLeft, Node newRight) {
+                return new Node(buffer, start, length, priority, newLeft, newRight);
+            }
+        }
+
+        private static int total(Node node) {
+            return node == null ? 0 : node.total;
+        }
+
+        private static int randomPriority() {
+            return ThreadLocalRandom.current().nextInt();
+        }
+
+        // Two trees holding the text before and from offset; a piece spanning offset is cut in two
+        private static Node[] split(Node node, int offset) {
+            if (node == null) return new Node[] {null, null};
+            int leftTotal = total(node.left);
+            if (offset <= leftTotal) {
+                Node[] parts = split(node.left, offset);
+                return new Node[] {parts[0], node.with(parts[1], node.right)};
+            }
+            int inPiece = offset - leftTotal;
+            if (inPiece >= node.length) {
+                Node[] parts = split(node.right, inPiece - node.length);
+                return new Node[] {node.with(node.left, parts[0]), parts[1]};
+            }
+            return new Node[] {
+                    new Node(node.buffer, node.start, inPiece, node.priority, node.left, null),
+                    new Node(node.buffer, node.start + inPiece, node.length - inPiece, node.priority, null, node.right)};
+        }
+
+        // The text of a followed by the text of b
+        private static Node merge(Node a, Node b) {
+            if (a == null) return b;
+            if (b == null) return a;
+            if (a.priority > b.priority) return a.with(a.left, merge(a.right, b));
+            return b.with(merge(a, b.left), b.right);
+        }
+
+        // node with its last piece lengthened by extra characters of the same buffer
+        private static Node extendLast(Node node, int extra) {
+            if (node.right != null) return node.with(node.left, extendLast(node.right, extra));
+            return new Node(node.buffer, node.start, node.length + extra, node.priority, node.left, null);
+        }
+
+        private static Node last(Node node) {
+            while (node.right != null) node = node.right;
+            return node;
+        }
+
+        @Override
+        public int length() {
+            return root.total;
+        }
+
+        @Override
+        public UndoableEdit insertString(int where, String str) throws BadLocationException {
+            if (where < 0 || where > length()) throw new BadLocationException("Invalid insert", length());
+            insert(where, str);
+            return new InsertUndo(where, str.length());
+        }
+
+        private void insert(int where, String str) {
+            int n = str.length();
+            if (n == 0) return;
+            Node[] parts = split(root, where);
+            Node before = parts[0];
+            if (n >= OWN_BUFFER_THRESHOLD) {
+                before = merge(before, new Node(str.toCharArray(), 0, n, randomPriority(), null, null));
+            } else {
+                if (addLength + n > addBuffer.length) {
+                    // Pieces keep pointing into the old array, whose used part never changes
+                    addBuffer = Arrays.copyOf(addBuffer, Math.max(addBuffer.length * 2, addLength + n));
+                }
+                str.getChars(0, n, addBuffer, addLength);
+                Node previous = before == null ? null : last(before);
+                if (previous != null && previous.buffer == addBuffer && previous.start + previous.length == addLength) {
+                    before = extendLast(before, n); // Typing: keep growing the same piece
+                } else {
+                    before = merge(before, new Node(addBuffer, addLength, n, randomPriority(), null, null));
+                }
+                addLength += n;
+            }
+            root = merge(before, parts[1]);
+            shiftMarksForInsert(where, n);
+        }
+
+        @Override
+        public UndoableEdit remove(int where, int nitems) throws BadLocationException {
+            if (where < 0 || nitems < 0 || where + nitems >= length()) {
+                throw new BadLocationException("Invalid remove", length() + 1);
+            }
+            RemoveUndo edit = new RemoveUndo(where, nitems);
+            delete(where, nitems);
+            return edit;
+        }
+
+        // Removes the text and returns it as a tree, which undo can put back without copying
+        private Node delete(int where, int nitems) {
+            if (nitems == 0) return null;
+            Node[] head = split(root, where);
+            Node[] tail = split(head[1], nitems);
+            root = merge(head[0], tail[1]);
+            shiftMarksForRemove(where, nitems);
+            return tail[0];
+        }
+
+        private void reinsert(int where, Node removed) {
+            if (removed == null) return;
+            Node[] parts = split(root, where);
+            root = merge(merge(parts[0], removed), parts[1]);
+            shiftMarksForInsert(where, removed.total);
+        }
+
+        @Override
+        public String getString(int where, int len) throws BadLocationException {
+            checkRange(where, len);
+            char[] chars = new char[len];
+            copy(root, 0, where, len, chars, 0);
+            return new String(chars);
+        }
+
+        // Points chars straight at a buffer when the range lies within one piece, or when a
+        // partial return is allowed; copies only when a whole range spanning pieces is required
+        @Override
+        public void getChars(int where, int len, Segment chars) throws BadLocationException {
+            checkRange(where, len);
+            if (len == 0) {
+                chars.array = EMPTY;
+                chars.offset = 0;
+                chars.count = 0;
+                return;
+            }
+            Node node = root;
+            int base = 0;
+            while (true) {
+                int leftTotal = total(node.left);
+                if (where < base + leftTotal) {
+                    node = node.left;
+                } else if (where < base + leftTotal + node.length) {
+                    base += leftTotal;
+                    break;
+                } else {
+                    base += leftTotal + node.length;
+                    node = node.right;
+                }
+            }
+            int available = base + node.length - where;
+            if (len <= available || chars.isPartialReturn()) {
+                chars.array = node.buffer;
+                chars.offset = node.start + where - base;
+                chars.count = Math.min(len, available);
+                return;
+            }
+            chars.array = new char[len];
+            chars.offset = 0;
+            chars.count = len;
+            copy(root, 0, where, len, chars.array, 0);
+        }
+
+        private void checkRange(int where, int len) throws BadLocationException {
+            if (where < 0 || len < 0) throw new BadLocationException("Invalid location", -1);
+            if (where + len > length()) throw new BadLocationException("Invalid location", length() + 1);
+        }
+
+        // Copies len characters from offset where of the subtree starting at base into target
+        private static void copy(Node node, int base, int where, int len, char[] target, int targetOffset) {
+            while (node != null && len > 0) {
+                int leftTotal = total(node.left);
+                int pieceStart = base + leftTotal;
+                if (where < pieceStart) {
+                    int n = Math.min(len, pieceStart - where);
+                    copy(node.left, base, where, n, target, targetOffset);
+                    where += n;
+                    len -= n;
+                    targetOffset += n;
+                }
+                if (len > 0 && where < pieceStart + node.length) {
+                    int n = Math.min(len, pieceStart + node.length - where);
+                    System.arraycopy(node.buffer, node.start + where - pieceStart, target, targetOffset, n);
+                    where += n;
+                    len -= n;
+                    targetOffset += n;
+                }
+                base = pieceStart + node.length;
+                node = node.right;
+            }
+        }
+
+        // The range [from, to) of the current text, unaffected by later edits
+        CharSequence snapshot(int from, int to) {
+            return new Text(root, from, to);
+        }
+
+        // A read-only view of part of one version of the text. charAt walks the tree only when it
+        // leaves the piece it last read, so a front-to-back scan costs O(1) per character. Not
+        // thread-safe, but separate views of the same text can be used on separate threads.
+        private static final class Text implements CharSequence {
+            private final Node root;
+            private final int from;
+            private final int to;
+            private char[] buffer;
+            private int pieceStart;  // Offset in the whole text where the current piece starts
+            private int pieceEnd;
+            private int bufferStart;
+
+            Text(Node root, int from, int to) {
+                this.root = root;
+                this.from = from;
+                this.to = to;
+            }
+
+            @Override
+            public int length() {
+                return to - from;
+            }
+
+            @Override
+            public char charAt(int index) {
+                if (index < 0 || index >= to - from) throw new IndexOutOfBoundsException("Index " + index + ", length " + length());
+                int offset = from + index;
+                if (offset < pieceStart || offset >= pieceEnd || buffer == null) {
+                    Node node = root;
+                    int base = 0;
+                    while (true) {
+                        int leftTotal = total(node.left);
+                        if (offset < base + leftTotal) {
+                            node = node.left;
+                        } else if (offset < base + leftTotal + node.length) {
+                            base += leftTotal;
+                            break;
+                        } else {
+                            base += leftTotal + node.length;
+                            node = node.right;
+                        }
+                    }
+                    buffer = node.buffer;
+                    pieceStart = base;
+                    pieceEnd = base + node.length;
+                    bufferStart = node.start;
+                }
+                return buffer[bufferStart + offset - pieceStart];
+            }
+
+            @Override
+            public CharSequence subSequence(int start, int end) {
+                if (start < 0 || end > length() || start > end) {
+                    throw new IndexOutOfBoundsException("Range " + start + ".." + end + ", length " + length());
+                }
+                return new Text(root, from + start, from + end);
+            }
+
+            @Override
+            public String toString() {
+                char[] chars = new char[to - from];
+                copy(root, 0, from, chars.length, chars, 0);
+                return new String(chars);
+            }
+        }
+
+        // --- Positions ---
+
+        // The data behind a Position, held weakly so marks nobody refers to can be dropped
+        private static final class Mark extends WeakReference<MarkPosition> {
+            int index;          // The offset, or the offset minus shift when relative
+            boolean relative;   // At or after split
+
+            Mark(int index, boolean relative, MarkPosition position, ReferenceQueue<MarkPosition> queue) {
+                super(position, queue);
+                this.index = index;
+                this.relative = relative;
+            }
+        }
+
+        private final class MarkPosition implements Position {
+            Mark mark;
+
+            @Override
+            public int getOffset() {
+                return offsetOf(mark);
+            }
+
+            @Override
+            public String toString() {
+                return Integer.toString(getOffset());
+            }
+        }
+
+        private int offsetOf(Mark mark) {
+            return mark.relative ? mark.index + shift : mark.index;
+        }
+
+        @Override
+        public Position createPosition(int offset) throws BadLocationException {
+            while (collected.poll() != null) unusedMarks++;
+            if (unusedMarks > Math.max(5, markCount / 10)) removeUnusedMarks();
+
+            // First mark at or after offset. Marks are not shared: one at the same offset now can
+            // be put somewhere else by an undo.
+            int low = 0;
+            int high = markCount;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (offsetOf(marks[mid]) < offset) low = mid + 1;
+                else high = mid;
+            }
+            MarkPosition position = new MarkPosition();
+            boolean relative = low >= split;
+            position.mark = new Mark(relative ? offset - shift : offset, relative, position, collected);
+            if (markCount == marks.length) marks = Arrays.copyOf(marks, markCount * 2);
+            System.arraycopy(marks, low, marks, low + 1, markCount - low);
+            marks[low] = position.mark;
+            markCount++;
+            if (!relative) split++;
+            return position;
+        }
+
+        private void removeUnusedMarks() {
+            int kept = 0;
+            int newSplit = 0;
+            for (int i = 0; i < markCount; i++) {
+                if (marks[i].get() == null) continue;
+                if (i < split) newSplit++;
+                marks[kept++] = marks[i];
+            }
+            Arrays.fill(marks, kept, markCount, null);
+            markCount = kept;
+            split = newSplit;
+            unusedMarks = 0;
+        }
+
+        // Moves split so that exactly the marks with an offset above limit are relative
+        private void moveSplit(int limit) {
+            while (split < markCount && offsetOf(marks[split]) <= limit) {
+                Mark mark = marks[split++];
+                mark.index += shift;
+                mark.relative = false;
+            }
+            while (split > 0 && offsetOf(marks[split - 1]) > limit) {
+                Mark mark = marks[--split];
+                mark.index -= shift;
+                mark.relative = true;
+            }
+        }
+
+        // Marks at or after where move with the text, except that marks at 0 stay at 0
+        private void shiftMarksForInsert(int where, int n) {
+            moveSplit(where == 0 ? 0 : where - 1);
+            shift += n;
+        }
+
+        // Marks inside the removed range, or at its end, move to where
+        private void shiftMarksForRemove(int where, int n) {
+            moveSplit(where);
+            while (split < markCount && offsetOf(marks[split]) <= where + n) {
+                Mark mark = marks[split++];
+                mark.index = where;
+                mark.relative = false;
+            }
+            shift -= n;
+        }
+
+        // The marks from where to where + length, with their current offsets
+        private List<Object[]> marksInRange(int where, int length) {
+            List<Object[]> found = new ArrayList<>();
+            for (int i = 0; i < markCount; i++) {
+                int offset = offsetOf(marks[i]);
+                if (offset > where + length) break;
+                if (offset >= where) found.add(new Object[] {marks[i], offset});
+            }
+            return found;
+        }
+
+        // Puts marks back where they were before the text around them was removed, as GapContent
+        // does on undo
+        private void restoreMarks(List<Object[]> saved) {
+            if (saved.isEmpty()) return;
+            moveSplit(Integer.MAX_VALUE); // Every mark absolute, so offsets can be set directly
+            for (Object[] entry : saved) ((Mark) entry[0]).index = (Integer) entry[1];
+            Arrays.sort(marks, 0, markCount, Comparator.comparingInt(mark -> mark.index));
+        }
+
+        // --- Undo ---
+
+        @SuppressWarnings("serial")
+        private class InsertUndo extends AbstractUndoableEdit {
+            private final int offset;
+            private final int length;
+            private Node removed;
+            private List<Object[]> savedMarks;
+
+            InsertUndo(int offset, int length) {
+                this.offset = offset;
+                this.length = length;
+            }
+
+            @Override
+            public void undo() throws CannotUndoException {
+                super.undo();
+                savedMarks = marksInRange(offset, length);
+                removed = delete(offset, length);
+            }
+
+            @Override
+            public void redo() throws CannotRedoException {
+                super.redo();
+                reinsert(offset, removed);
+                restoreMarks(savedMarks);
+                removed = null;
+            }
+        }
+
+        @SuppressWarnings("serial")
+        private class RemoveUndo extends AbstractUndoableEdit {
+            private final int offset;
+            private final int length;
+            private Node removed;
+            private List<Object[]> savedMarks;
+
+            RemoveUndo(int offset, int length) {
+                this.offset = offset;
+                this.length = length;
+                savedMarks = marksInRange(offset, length);
+                removed = split(split(root, offset)[1], length)[0];
+            }
+
+            @Override
+            public void undo() throws CannotUndoException {
+                super.undo();
+                reinsert(offset, removed);
+                restoreMarks(savedMarks);
+                removed = null;
+            }
+
+            @Override
+            public void redo() throws CannotRedoException {
+                super.redo();
+                savedMarks = marksInRange(offset, length);
+                removed = delete(offset, length);
+            }
+        }
+    }
+
+    // Loading and saving the editor's file off the event thread. Both work in chunks and report
+    // progress as a percentage, only when it changes. Files of MAP_THRESHOLD bytes or more are
+    // decoded straight from a memory-mapped view; saves go to a temporary file in the same folder
+    // that is renamed over the original, so a failed save never leaves half a file behind.
+    private static class EditorFiles {
+        private static final int MAP_THRESHOLD = 1 << 20;
+        private static final int CHUNK = 1 << 20;
+        // Share of a load's progress bar for decoding; filling the document takes the rest
+        private static final int DECODE_PERCENT = 30;
+
+        private interface Task<T> {
+            T call(IntConsumer progress) throws IOException;
+        }
+
+        // A new document for kit holding the file's text with line endings turned into \n; the
+        // first ending found is kept as EndOfLineStringProperty, as EditorKit.read does
+        static Document load(File file, EditorKit kit, IntConsumer progress) throws IOException {
+            CharBuffer chars;
+            try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+                long size = channel.size();
+                CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                double capacity = Math.ceil(size * (double) decoder.maxCharsPerByte()) + 16;
+                if (capacity > Integer.MAX_VALUE - 8) throw new IOException("The file is too large to edit");
+                ByteBuffer bytes = size >= MAP_THRESHOLD
+                        ? channel.map(FileChannel.MapMode.READ_ONLY, 0, size)
+                        : ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+                chars = CharBuffer.allocate((int) capacity);
+                Progress reporter = new Progress(progress, size, 0, DECODE_PERCENT);
+                while (true) {
+                    // A character split by the chunk end stays in bytes for the next round
+                    bytes.limit((int) Math.min(size, (long) bytes.position() + CHUNK));
+                    boolean last = bytes.limit() == size;
+                    decoder.decode(bytes, chars, last);
+                    reporter.update(bytes.position());
+                    if (last) break;
+                }
+                decoder.flush(chars);
+            }
+
+            char[] text = chars.array();
+            int length = chars.position();
+            String lineSeparator = null;
+            int kept = 0;
+            for (int i = 0; i < length; i++) {
+                char c = text[i];
+                if (c == '\r') {
+                    boolean crlf = i + 1 < length && text[i + 1] == '\n';
+                    if (lineSeparator == null) lineSeparator = crlf ? "\r\n" : "\r";
+                    if (crlf) continue;
+                    c = '\n';
+                } else if (c == '\n' && lineSeparator == null) {
+                    lineSeparator = "\n";
+                }
+                text[kept++] = c;
+            }
+
+            // Not yet shown, so it can be filled on this thread. Whole lines a chunk at a time, which
+            // also builds a styled document's line elements faster than one insert of everything.
+            Document document = kit.createDefaultDocument();
+            Progress reporter = new Progress(progress, kept, DECODE_PERCENT, 100);
+            try {
+                for (int start = 0; start < kept; ) {
+                    int end = Math.min(kept, start + CHUNK);
+                    if (end < kept) {
+                        int lineEnd = end;
+                        while (lineEnd > start && text[lineEnd - 1] != '\n') lineEnd--;
+                        if (lineEnd > start) end = lineEnd; // Otherwise one line is longer than a chunk
+                    }
+                    document.insertString(document.getLength(), new String(text, start, end - start), null);
+                    start = end;
+                    reporter.update(start);
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e); // Always inserting at the end
+            }
+            if (lineSeparator != null) document.putProperty(DefaultEditorKit.EndOfLineStringProperty, lineSeparator);
+            return document;
+        }
+
+        // Writes text, whose lines end in \n, to file with lineSeparator between lines
+        static void save(File file, CharSequence text, String lineSeparator, IntConsumer progress) throws IOException {
+            Path target = file.toPath().toAbsolutePath();
+            if (!Files.exists(target)) {
+                // Nothing to protect, and creating it directly gives it the usual permissions
+                try {
+                    write(target, text, lineSeparator, progress, StandardOpenOption.WRITE, StandardOpenOption.CREATE_NEW);
+                } catch (IOException e) {
+                    Files.deleteIfExists(target);
+                    throw e;
+                }
+                return;
+            }
+            Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+            try {
+                try {
+                    // createTempFile makes the file private; keep the permissions the original had
+                    Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(target));
+                } catch (UnsupportedOperationException ignored) {
+                    // Not a POSIX file system
+                }
+                write(temp, text, lineSeparator, progress, StandardOpenOption.WRITE);
+                try {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                } catch (AtomicMoveNotSupportedException e) {
+                    Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                Files.deleteIfExists(temp); // Only still there if something failed
+            }
+        }
+
+        // Streams text through a small staging buffer, expanding each \n to lineSeparator on the way,
+        // so the document is never copied whole
+        private static void write(Path path, CharSequence text, String lineSeparator, IntConsumer progress,
+                                  StandardOpenOption... options) throws IOException {
+            CharsetEncoder encoder = Charset.defaultCharset().newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            CharBuffer chars = CharBuffer.allocate(1 << 15);
+            chars.limit(0);
+            ByteBuffer bytes = ByteBuffer.allocate(1 << 16);
+            Progress reporter = new Progress(progress, text.length(), 0, 100);
+            int length = text.length();
+            int next = 0;
+            try (FileChannel channel = FileChannel.open(path, options)) {
+                while (true) {
+                    // Keeps whatever the encoder left over, such as half a surrogate pair
+                    chars.compact();
+                    while (next < length && chars.remaining() >= lineSeparator.length()) {
+                        char c = text.charAt(next++);
+                        if (c == '\n') chars.put(lineSeparator);
+                        else chars.put(c);
+                    }
+                    chars.flip();
+                    boolean last = next == length;
+                    // Overflow means bytes is full; underflow means everything staged is encoded
+                    boolean more = encoder.encode(chars, bytes, last).isOverflow();
+                    drain(bytes, channel);
+                    reporter.update(next);
+                    if (last && !more) break;
+                }
+                while (encoder.flush(bytes).isOverflow()) drain(bytes, channel);
+                drain(bytes, channel);
+                channel.force(true);
+            }
+        }
+
+        private static void drain(ByteBuffer bytes, FileChannel channel) throws IOException {
+            bytes.flip();
+            while (bytes.hasRemaining()) channel.write(bytes);
+            bytes.clear();
+        }
+
+        // Reports done out of total as a percentage between from and to
+        private static class Progress {
+            private final IntConsumer target;
+            private final long total;
+            private final int from;
+            private final int to;
+            private int last = -1;
+
+            Progress(IntConsumer target, long total, int from, int to) {
+                this.target = target;
+                this.total = total;
+                this.from = from;
+                this.to = to;
+            }
+
+            void update(long done) {
+                int percent = from + (total == 0 ? to - from : (int) (done * (to - from) / total));
+                if (percent != last) {
+                    last = percent;
+                    target.accept(percent);
+                }
+            }
+        }
+    }
+
+    // Long-lived front end to the system compiler. StandardJavaFileManagers are kept open for the
+    // life of the application, so javac's index of the platform classes (jrt/ct.sym) and the
+    // JIT-compiled compiler code survive between compilations; each compile only brings its own
+    // sources and output. A file manager is not thread-safe, so each compile borrows one from a
+    // pool, which grows to the number of compiles that ever ran at the same time.
+    private static class CompilerService {
+        private static final String WARM_UP_SOURCE =
+                "public class WarmUp { public static void main(String[] args) { System.out.println(args.length); } }";
+
+        private static final List<String> NO_OPTIONS = Collections.emptyList();
+
+        private final JavaCompiler compiler;
+        private final ResultCache cache = new ResultCache(Long.getLong("compiler.cacheMb", 32) << 20);
+        // For each file compileFile compiled, the packages javac listed on the user paths last time
+        private final Map<Path, Set<PathListing>> listedPackages = new ConcurrentHashMap<>();
+        // Most recently used first, so the warmest manager is reused
+        private final Deque<StandardJavaFileManager> idleFileManagers = new ArrayDeque<>();
+        private final Object lock = new Object();
+
+        // Metrics, guarded by lock
+        private long warmUpNanos = -1;
+        private int compileCount;
+        private long totalNanos;
+        private long lastNanos;
+        private long fastestNanos = Long.MAX_VALUE;
+
+        private CompilerService(JavaCompiler compiler) {
+            this.compiler = compiler;
+            idleFileManagers.push(newFileManager());
+        }
+
+        // Null when running on a JRE without javac
+        public static CompilerService create() {
+            JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+            return compiler == null ? null : new CompilerService(compiler);
+        }
+
+        private StandardJavaFileManager newFileManager() {
+            return compiler.getStandardFileManager(null, Locale.getDefault(), null);
+        }
+
+        private StandardJavaFileManager acquireFileManager() {
+            synchronized (lock) {
+                StandardJavaFileManager fileManager = idleFileManagers.poll();
+                if (fileManager != null) return fileManager;
+            }
+            return newFileManager();
+        }
+
+        private void releaseFileManager(StandardJavaFileManager fileManager) {
+            try {
+                // Drops per-compilation output state but keeps the cached platform classes
+                fileManager.flush();
+            } catch (IOException ignored) {
+                // Nothing is buffered for our outputs
+            }
+            synchronized (lock) {
+                idleFileManagers.push(fileManager);
+            }
+        }
+
+        // Compiles a throwaway class so the first real compile does not pay for class loading and JIT
+        public void warmUp() {
+            long start = System.nanoTime();
+            compileInMemory("WarmUp", WARM_UP_SOURCE, false);
+            synchronized (lock) {
+                warmUpNanos = System.nanoTime() - start;
+            }
+        }
+
+        // Returns the earlier result if the same class and source compiled before
+        public Result compileInMemory(String className, CharSequence source) {
+            String key = ResultCache.key(NO_OPTIONS, "memory", className, source);
+            Result cached = cache.get(key);
+            if (cached != null) return cached.asCached();
+            Result result = compileInMemory(className, source, true);
+            if (result.isSuccess()) cache.put(key, result);
+            return result;
+        }
+
+        private Result compileInMemory(String className, CharSequence source, boolean record) {
+            StandardJavaFileManager fileManager = acquireFileManager();
+            try {
+                MemoryFileManager memoryFileManager = new MemoryFileManager(fileManager);
+                Result result = run(memoryFileManager, Collections.singletonList(new MemorySource(className, source)), NO_OPTIONS, null, record);
+                return result.isSuccess() ? result.withClassBytes(memoryFileManager.getClassBytes()) : result;
+            } finally {
+                releaseFileManager(fileManager);
+            }
+        }
+
+        // Compiles a source file, writing class files next to it. Returns the earlier result if the
+        // file is unchanged since it last compiled, the class files it produced are still there, and
+        // nothing changed in the packages javac looked in on the class path, where it may have found
+        // other sources or classes the file uses.
+        public Result compileFile(File sourceFile) {
+            StandardJavaFileManager fileManager = acquireFileManager();
+            try {
+                Path path = sourceFile.toPath().toAbsolutePath().normalize();
+                byte[] content;
+                try {
+                    content = Files.readAllBytes(path);
+                } catch (IOException e) {
+                    content = null; // javac reports it
+                }
+                String key = content != null ? fileKey(path, content, PathListing.fingerprint(fileManager, listedPackages.get(path))) : null;
+                Result cached = key != null ? cache.get(key) : null;
+                if (cached != null) {
+                    if (classFilesExist(sourceFile, cached)) return cached.asCached();
+                    cache.remove(key);
+                }
+
+                // Atomic writes, since a run of the previous build may still be loading these classes
+                AtomicOutputFileManager outputFileManager = new AtomicOutputFileManager(fileManager);
+                ListingRecorder recorder = new ListingRecorder(outputFileManager);
+                Result result = run(recorder,
+                        fileManager.getJavaFileObjectsFromFiles(Collections.singletonList(sourceFile)), NO_OPTIONS, null, true)
+                        .withClassOutputs(outputFileManager.outputs);
+                listedPackages.put(path, recorder.listings);
+                // Keyed by the packages as they are now, with this compile's class files in them
+                if (content != null && result.isSuccess()) {
+                    cache.put(fileKey(path, content, PathListing.fingerprint(fileManager, recorder.listings)), result);
+                }
+                return result;
+            } finally {
+                releaseFileManager(fileManager);
+            }
+        }
+
+        private static String fileKey(Path path, byte[] content, CharSequence pathFingerprint) {
+            return ResultCache.key(NO_OPTIONS, "file", path.toString(), content, pathFingerprint);
+        }
+
+        // A package javac listed on the user class or source path while compiling
+        private static final class PathListing {
+            final JavaFileManager.Location location;
+            final String packageName;
+            final Set<JavaFileObject.Kind> kinds;
+            final boolean recurse;
+
+            PathListing(JavaFileManager.Location location, String packageName, Set<JavaFileObject.Kind> kinds, boolean recurse) {
+                this.location = location;
+                this.packageName = packageName;
+                this.kinds = kinds;
+                this.recurse = recurse;
+            }
+
+            // Every file now in the listed packages with its modification time, in a stable order.
+            // Empty for no listings, as before a file's first compile.
+            static CharSequence fingerprint(JavaFileManager fileManager, Set<PathListing> listings) {
+                if (listings == null) return "";
+                List<String> files = new ArrayList<>();
+                try {
+                    for (PathListing listing : listings) {
+                        for (JavaFileObject file : fileManager.list(listing.location, listing.packageName, listing.kinds, listing.recurse)) {
+                            files.add(listing.location.getName() + ' ' + file.toUri() + ' ' + file.getLastModified());
+                        }
+                    }
+                } catch (IOException e) {
+                    return "unlisted " + System.nanoTime(); // Matches nothing cached
+                }
+                Collections.sort(files);
+                return String.join("\n", files);
+            }
+
+            @Override
+            public boolean equals(Object o) {
+                if (!(o instanceof PathListing)) return false;
+                PathListing other = (PathListing) o;
+                return location.equals(other.location) && packageName.equals(other.packageName)
+                        && kinds.equals(other.kinds) && recurse == other.recurse;
+            }
+
+            @Override
+            public int hashCode() {
+                return Objects.hash(location, packageName, kinds, recurse);
+            }
+        }
+
+        // Records the packages javac lists on the user class and source paths
+        private static class ListingRecorder extends ForwardingJavaFileManager<JavaFileManager> {
+            final Set<PathListing> listings = new HashSet<>();
+
+            ListingRecorder(JavaFileManager fileManager) {
+                super(fileManager);
+            }
+
+            @Override
+            public Iterable<JavaFileObject> list(Location location, String packageName, Set<JavaFileObject.Kind> kinds,
+                                                 boolean recurse) throws IOException {
+                if (location == StandardLocation.CLASS_PATH || location == StandardLocation.SOURCE_PATH) {
+                    listings.add(new PathListing(location, packageName, new HashSet<>(kinds), recurse));
+                }
+                return super.list(location, packageName, kinds, recurse);
+            }
+        }
+
+        // Without -d, javac puts every class next to its source file
+        private static boolean classFilesExist(File sourceFile, Result result) {
+            for (Set<String> classNames : result.getClassOutputs().values()) {
+                for (String className : classNames) {
+                    String simpleName = className.substring(className.lastIndexOf('.') + 1);
+                    if (!new File(sourceFile.getParentFile(), simpleName + ".class").isFile()) return false;
+                }
+            }
+            return true;
+        }
+
+        // Compiles sources into outputDir, resolving every other type from the class files already
+        // there. setup sees the task before it runs, e.g. to register a TaskListener. Safe to call
+        // from several threads at once with the same outputDir.
+        public Result compileInto(Collection<Path> sources, File outputDir, Consumer<JavacTask> setup) throws IOException {
+            StandardJavaFileManager fileManager = acquireFileManager();
+            List<File> files = new ArrayList<>(sources.size());
+            for (Path source : sources) files.add(source.toFile());
+            List<File> output = Collections.singletonList(outputDir);
+            // Locations are set on the borrowed file manager for this compile only; passing
+            // -d/-cp options instead would change them for every later compile as well
+            fileManager.setLocation(StandardLocation.CLASS_OUTPUT, output);
+            fileManager.setLocation(StandardLocation.CLASS_PATH, output);
+            fileManager.setLocation(StandardLocation.SOURCE_PATH, Collections.<File>emptyList());
+            try {
+                AtomicOutputFileManager outputFileManager = new AtomicOutputFileManager(fileManager);
+                Result result = run(outputFileManager, fileManager.getJavaFileObjectsFromFiles(files),
+                        Collections.singletonList("-implicit:none"), setup, true);
+                return result.withClassOutputs(outputFileManager.outputs);
+            } finally {
+                fileManager.setLocation(StandardLocation.CLASS_OUTPUT, null);
+                fileManager.setLocation(StandardLocation.CLASS_PATH, null);
+                fileManager.setLocation(StandardLocation.SOURCE_PATH, null);
+                releaseFileManager(fileManager);
+            }
+        }
+
+        // Parses sources without analysing them and hands each tree to reader. Syntax errors are
+        // not reported here; the compile that follows reports them.
+        public void parse(Collection<Path> sources, Consumer<CompilationUnitTree> reader) throws IOException {
+            StandardJavaFileManager fileManager = acquireFileManager();
+            try {
+                List<File> files = new ArrayList<>(sources.size());
+                for (Path source : sources) files.add(source.toFile());
+                JavacTask task = (JavacTask) compiler.getTask(null, fileManager, new DiagnosticCollector<>(), null, null,
+                        fileManager.getJavaFileObjectsFromFiles(files));
+                for (CompilationUnitTree unit : task.parse()) {
+                    reader.accept(unit);
+                }
+            } finally {
+                releaseFileManager(fileManager);
+            }
+        }
+
+        // Parses and attributes source without generating code, for checking the editor as the user
+        // types. With sourceRoot set, other types come from that source tree and from classDir.
+        // Returns null if cancelled turned true, which javac checks before each phase of each class.
+        public List<Diagnostic<? extends JavaFileObject>> analyze(String className, CharSequence source, File sourceRoot,
+                                                                  File classDir, BooleanSupplier cancelled) {
+            StandardJavaFileManager fileManager = acquireFileManager();
+            try {
+                if (sourceRoot != null) {
+                    fileManager.setLocation(StandardLocation.SOURCE_PATH, Collections.singletonList(sourceRoot));
+                    fileManager.setLocation(StandardLocation.CLASS_PATH, Collections.singletonList(classDir));
+                }
+                DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+                JavacTask task = (JavacTask) compiler.getTask(null, new MemoryFileManager(fileManager), diagnostics,
+                        Collections.singletonList("-proc:none"), null,
+                        Collections.singletonList(new MemorySource(className, source)));
+                task.addTaskListener(new TaskListener() {
+                    @Override
+                    public void started(TaskEvent e) {
+                        if (cancelled.getAsBoolean()) throw new CancellationException();
+                    }
+                });
+                task.analyze();
+                return cancelled.getAsBoolean() ? null : diagnostics.getDiagnostics();
+            } catch (IOException | RuntimeException e) {
+                // Cancelled, or javac gave up on this text; the next edit tries again
+                return null;
+            } finally {
+                try {
+                    if (sourceRoot != null) {
+                        fileManager.setLocation(StandardLocation.SOURCE_PATH, null);
+                        fileManager.setLocation(StandardLocation.CLASS_PATH, null);
+                    }
+                } catch (IOException ignored) {
+                    // Resetting to the defaults does not touch the file system
+                }
+                releaseFileManager(fileManager);
+            }
+        }
+
+        private Result run(JavaFileManager taskFileManager, Iterable<? extends JavaFileObject> units, List<String> options,
+                           Consumer<JavacTask> setup, boolean record) {
+            DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+            long start = System.nanoTime();
+            CompilationTask task = compiler.getTask(null, taskFileManager, diagnostics, options, null, units);
+            if (setup != null) setup.accept((JavacTask) task);
+            boolean success = task.call();
+            long nanos = System.nanoTime() - start;
+            if (record) {
+                synchronized (lock) {
+                    compileCount++;
+                    totalNanos += nanos;
+                    lastNanos = nanos;
+                    fastestNanos = Math.min(fastestNanos, nanos);
+                }
+            }
+            return new Result(success, diagnostics.getDiagnostics(), nanos, null, null, false);
+        }
+
+        // Successful compiles by a SHA-256 of everything that decides their output: the javac
+        // version, the options, and the source. Least recently used entries go first once the
+        // memory the results hold on to adds up to more than maxBytes.
+        private static class ResultCache {
+            private final long maxBytes;
+            private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+            private long bytes;
+            private int hits;
+            private int misses;
+
+            ResultCache(long maxBytes) {
+                this.maxBytes = maxBytes;
+            }
+
+            // Parts are hashed with a separator between them; byte arrays are hashed as they are
+            static String key(List<String> options, Object... parts) {
+                try {
+                    MessageDigest digest = MessageDigest.getInstance("SHA-256");
+                    digest.update(System.getProperty("java.version").getBytes(StandardCharsets.UTF_8));
+                    for (String option : options) {
+                        digest.update((byte) 0);
+                        digest.update(option.getBytes(StandardCharsets.UTF_8));
+                    }
+                    for (Object part : parts) {
+                        digest.update((byte) 1);
+                        if (part instanceof byte[]) digest.update((byte[]) part);
+                        else update(digest, part instanceof CharSequence ? (CharSequence) part : part.toString());
+                    }
+                    StringBuilder hex = new StringBuilder();
+                    for (byte b : digest.digest()) hex.append(String.format("%02x", b));
+                    return hex.toString();
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e); // Every JDK ships SHA-256
+                }
+            }
+
+            // Hashes text as UTF-8 a block at a time, so a document snapshot is never copied whole
+            private static void update(MessageDigest digest, CharSequence text) {
+                CharsetEncoder encoder = StandardCharsets.UTF_8.newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                CharBuffer chars = CharBuffer.wrap(text);
+                ByteBuffer bytes = ByteBuffer.allocate(8192);
+                boolean more = true;
+                while (more) {
+                    more = encoder.encode(chars, bytes, true).isOverflow();
+                    bytes.flip();
+                    digest.update(bytes);
+                    bytes.clear();
+                }
+                encoder.flush(bytes); // UTF-8 keeps no state between characters, so this never overflows
+                bytes.flip();
+                digest.update(bytes);
+            }
+
+            // The size is worked out once, when the result is added, so the total stays consistent
+            private static final class Entry {
+                final Result result;
+                final long size;
+
+                Entry(Result result, long size) {
+                    this.result = result;
+                    this.size = size;
+                }
+            }
+
+            synchronized Result get(String key) {
+                Entry entry = entries.get(key);
+                if (entry != null) hits++;
+                else misses++;
+                return entry != null ? entry.result : null;
+            }
+
+            void put(String key, Result result) {
+                long size = sizeOf(result); // Outside the lock, as it may look at files
+                if (size > maxBytes) return;
+                synchronized (this) {
+                    Entry previous = entries.put(key, new Entry(result, size));
+                    if (previous != null) bytes -= previous.size;
+                    bytes += size;
+                    Iterator<Entry> eldest = entries.values().iterator();
+                    while (bytes > maxBytes) {
+                        bytes -= eldest.next().size;
+                        eldest.remove();
+                    }
+                }
+            }
+
+            synchronized void remove(String key) {
+                Entry previous = entries.remove(key);
+                if (previous != null) bytes -= previous.size;
+            }
+
+            // Estimated memory held by a result: the class files, the diagnostics with their
+            // messages, and the text of each source a diagnostic points to. javac's diagnostics keep
+            // their source file object, which for an in-memory compile holds the editor snapshot, and
+            // a copy of the text used to find lines and columns; both count at two bytes a char.
+            private static long sizeOf(Result result) {
+                long size = 256;
+                if (result.getClassBytes() != null) {
+                    for (Map.Entry<String, byte[]> classFile : result.getClassBytes().entrySet()) {
+                        size += 64 + 2L * classFile.getKey().length() + classFile.getValue().length;
+                    }
+                }
+                if (result.getClassOutputs() != null) {
+                    for (Set<String> classNames : result.getClassOutputs().values()) {
+                        size += 128;
+                        for (String className : classNames) size += 64 + 2L * className.length();
+                    }
+                }
+                Set<JavaFileObject> sources = Collections.newSetFromMap(new IdentityHashMap<>());
+                for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics()) {
+                    size += 512 + 2L * d.getMessage(Locale.ROOT).length();
+                    if (d.getSource() != null && sources.add(d.getSource())) size += 4 * sourceLength(d.getSource());
+                }
+                return size;
+            }
+
+            private static long sourceLength(JavaFileObject source) {
+                try {
+                    URI uri = source.toUri();
+                    if ("file".equals(uri.getScheme())) return Files.size(Paths.get(uri));
+                    return source.getCharContent(true).length();
+                } catch (IOException | RuntimeException e) {
+                    return 0; // Gone already; javac only holds what it read
+                }
+            }
+
+            synchronized String describe() {
+                return entries.size() + " entries, " + formatBytes(bytes) + " of " + formatBytes(maxBytes) + ", "
+                        + hits + " hits, " + misses + " misses";
+            }
+        }
+
+        // Writes each class file to a temporary sibling and renames it into place when javac closes
+        // it, so a compile running in parallel reads either the old class or the new one, never half
+        // of one. Also records the classes written for each source file.
+        private static class AtomicOutputFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+            final Map<Path, Set<String>> outputs = new HashMap<>();
+
+            AtomicOutputFileManager(StandardJavaFileManager fileManager) {
+                super(fileManager);
+            }
+
+            @Override
+            public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                       FileObject sibling) throws IOException {
+                JavaFileObject file = super.getJavaFileForOutput(location, className, kind, sibling);
+                if (location != StandardLocation.CLASS_OUTPUT || kind != JavaFileObject.Kind.CLASS) return file;
+                if (sibling != null) {
+                    outputs.computeIfAbsent(Paths.get(sibling.toUri()).toAbsolutePath().normalize(), k -> new HashSet<>())
+                            .add(className);
+                }
+                Path target = Paths.get(file.toUri());
+                return new ForwardingJavaFileObject<JavaFileObject>(file) {
+                    @Override
+                    public OutputStream openOutputStream() throws IOException {
+                        Files.createDirectories(target.getParent());
+                        Path temp = Files.createTempFile(target.getParent(), target.getFileName().toString(), ".tmp");
+                        return new FilterOutputStream(Files.newOutputStream(temp)) {
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                out.write(b, off, len);
+                            }
+
+                            @Override
+                            public void close() throws IOException {
+                                super.close();
+                                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                            }
+                        };
+                    }
+                };
+            }
+        }
+
+        public String describeMetrics() {
+            synchronized (lock) {
+                StringBuilder sb = new StringBuilder();
+                sb.append("Warm-up compile: ").append(warmUpNanos < 0 ? "not run" : millis(warmUpNanos) + " ms").append('\n');
+                sb.append("Compilations: ").append(compileCount).append('\n');
+                if (compileCount > 0) {
+                    sb.append("Last: ").append(millis(lastNanos)).append(" ms\n");
+                    sb.append("Average: ").append(millis(totalNanos / compileCount)).append(" ms\n");
+                    sb.append("Fastest: ").append(millis(fastestNanos)).append(" ms\n");
+                }
+                sb.append("Result cache: ").append(cache.describe()).append('\n');
+                return sb.toString();
+            }
+        }
+
+        private static long millis(long nanos) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos);
+        }
+
+        public static class Result {
+            private final boolean success;
+            private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+            private final long nanos;
+            private final Map<String, byte[]> classBytes;
+            private final Map<Path, Set<String>> classOutputs;
+            private final boolean cached;
+
+            Result(boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics, long nanos,
+                   Map<String, byte[]> classBytes, Map<Path, Set<String>> classOutputs, boolean cached) {
+                this.success = success;
+                this.diagnostics = diagnostics;
+                this.nanos = nanos;
+                this.classBytes = classBytes;
+                this.classOutputs = classOutputs;
+                this.cached = cached;
+            }
+
+            Result withClassBytes(Map<String, byte[]> bytes) {
+                return new Result(success, diagnostics, nanos, Collections.unmodifiableMap(bytes), classOutputs, cached);
+            }
+
+            Result withClassOutputs(Map<Path, Set<String>> outputs) {
+                return new Result(success, diagnostics, nanos, classBytes, outputs, cached);
+            }
+
+            Result asCached() {
+                return new Result(success, diagnostics, nanos, classBytes, classOutputs, true);
+            }
+
+            // True when this is an earlier compile's result, returned because nothing changed
+            public boolean isCached() {
+                return cached;
+            }
+
+            public boolean isSuccess() {
+                return success;
+            }
+
+            public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+                return diagnostics;
+            }
+
+            public long getMillis() {
+                return TimeUnit.NANOSECONDS.toMillis(nanos);
+            }
+
+            // Bytecode by binary name for in-memory compiles, null when classes were written to disk
+            public Map<String, byte[]> getClassBytes() {
+                return classBytes;
+            }
+
+            // Binary names of the class files written for each source, for compileInto only
+            public Map<Path, Set<String>> getClassOutputs() {
+                return classOutputs;
+            }
+        }
+    }
+
+    // Incremental builder for a source tree. Each build compiles only the files that changed on disk,
+    // then, round by round, the files that depend on a type whose ABI (its non-private signatures
+    // and constant values) changed. Dependencies and ABI hashes are recorded from javac itself:
+    // a TaskListener walks each analysed class with the Trees API. State lives for the session,
+    // so the first build after opening a project compiles everything.
+    //
+    // Large rounds compile in parallel. A parse-only pass links each file to the files declaring
+    // the names it mentions; the strongly connected components of that graph are grouped into
+    // levels, and the components of one level compile as independent javac tasks on a bounded
+    // ForkJoinPool once every level they depend on has finished. A task that fails, possibly
+    // because the parse graph missed an edge, is retried together with whatever depended on it in
+    // a final single task after all levels, and only that task's errors are reported. Diagnostics
+    // are sorted by file and position, so the console reads the same whatever the thread timing.
+    private static class ProjectBuilder {
+        private static final int PARALLELISM = Math.max(1, Integer.getInteger("build.threads",
+                Runtime.getRuntime().availableProcessors()));
+        private static final ForkJoinPool BUILD_POOL = new ForkJoinPool(PARALLELISM);
+        // Smaller tasks cost more in per-task javac start-up than they gain from running in parallel
+        private static final int MIN_FILES_PER_TASK = 8;
+
+        private final Path sourceRoot;
+        private final File outputDir;
+        private final CompilerService compilerService;
+        private final Map<Path, SourceState> states = new HashMap<>();
+        // Top-level type name -> files that reference it
+        private final Map<String, Set<Path>> dependents = new HashMap<>();
+        private boolean outputCleaned;
+
+        // Per-build bookkeeping. Compiles are numbered in steps: everything in one step runs at the
+        // same time, so a file saw another file's new classes only if it compiled in a later step
+        // or in the same javac task.
+        private int step;
+        private int taskCount;
+        private final Map<Path, Integer> compiledAtStep = new HashMap<>();
+        private final Map<Path, Integer> compiledInTask = new HashMap<>();
+        private final List<Diagnostic<? extends JavaFileObject>> diagnostics = new ArrayList<>();
+        private final List<Path> abiChangedFiles = new ArrayList<>();
+        private final Map<Path, Set<String>> abiChangedTypes = new HashMap<>();
+
+        private static class SourceState {
+            long lastModified = -1;
+            long length = -1;
+            Set<String> types = Collections.emptySet();
+            Set<String> dependencies = Collections.emptySet();
+            Set<String> classOutputs = Collections.emptySet();
+            byte[] abiHash;
+        }
+
+        public ProjectBuilder(File sourceRoot, CompilerService compilerService) {
+            this.sourceRoot = sourceRoot.toPath().toAbsolutePath().normalize();
+            this.outputDir = new File(sourceRoot, ".jgc-build" + File.separator + "classes");
+            this.compilerService = compilerService;
+        }
+
+        public File getSourceRoot() {
+            return sourceRoot.toFile();
+        }
+
+        public File getOutputDir() {
+            return outputDir;
+        }
+
+        public boolean contains(File file) {
+            return file.toPath().toAbsolutePath().normalize().startsWith(sourceRoot);
+        }
+
+        // Synchronized because runs started together may build the same project
+        public synchronized BuildResult build() throws IOException {
+            long start = System.nanoTime();
+            if (!outputCleaned) {
+                deleteTree(outputDir.toPath());
+                outputCleaned = true;
+            }
+            Files.createDirectories(outputDir.toPath());
+            step = 0;
+            taskCount = 0;
+            compiledAtStep.clear();
+            compiledInTask.clear();
+            diagnostics.clear();
+
+            List<Path> sources = findSources();
+            Set<Path> present = new HashSet<>(sources);
+            Set<String> removedTypes = new HashSet<>();
+            for (Iterator<Map.Entry<Path, SourceState>> it = states.entrySet().iterator(); it.hasNext(); ) {
+                Map.Entry<Path, SourceState> entry = it.next();
+                if (!present.contains(entry.getKey())) {
+                    deleteClassFiles(entry.getValue().classOutputs);
+                    removedTypes.addAll(entry.getValue().types);
+                    unlink(entry.getKey(), entry.getValue().dependencies);
+                    it.remove();
+                }
+            }
+
+            Set<Path> dirty = new TreeSet<>();
+            for (Path source : sources) {
+                SourceState state = states.get(source);
+                File file = source.toFile();
+                if (state == null || state.lastModified != file.lastModified() || state.length != file.length()) {
+                    dirty.add(source);
+                }
+            }
+            for (String type : removedTypes) {
+                Set<Path> users = dependents.get(type);
+                if (users != null) dirty.addAll(users);
+            }
+
+            int rounds = 0;
+            boolean success = true;
+            while (success && !dirty.isEmpty()) {
+                rounds++;
+                abiChangedFiles.clear();
+                abiChangedTypes.clear();
+                success = compileRound(dirty);
+                dirty = staleDependents();
+                if (!success) {
+                    // Their dependencies changed under them; make the next build pick them up
+                    for (Path source : dirty) markStale(source);
+                }
+            }
+            diagnostics.sort(DIAGNOSTIC_ORDER);
+            return new BuildResult(success, new ArrayList<>(diagnostics), compiledAtStep.size(), sources.size(),
+                    rounds, System.nanoTime() - start);
+        }
+
+        private boolean compileRound(Set<Path> round) throws IOException {
+            if (PARALLELISM == 1 || round.size() < 2 * MIN_FILES_PER_TASK) {
+                return compileStep(Collections.singletonList(new ArrayList<>(round)), null);
+            }
+            Map<Path, Set<Path>> edges = parseDependencies(round);
+            Set<Path> deferred = new TreeSet<>();
+            for (List<List<Path>> level : planLevels(round, edges)) {
+                List<List<Path>> runnable = new ArrayList<>();
+                for (List<Path> component : level) {
+                    if (dependsOnAny(component, edges, deferred)) deferred.addAll(component);
+                    else runnable.add(component);
+                }
+                if (!runnable.isEmpty()) compileStep(splitIntoTasks(runnable), deferred);
+            }
+            return deferred.isEmpty() || compileStep(Collections.singletonList(new ArrayList<>(deferred)), null);
+        }
+
+        // Compiles the given tasks side by side as one step. When deferred is null a failure is
+        // final and its diagnostics are kept; otherwise failed files go into deferred, silently.
+        private boolean compileStep(List<List<Path>> tasks, Set<Path> deferred) throws IOException {
+            step++;
+            List<Callable<TaskOutcome>> calls = new ArrayList<>(tasks.size());
+            for (List<Path> files : tasks) {
+                int task = ++taskCount;
+                calls.add(() -> {
+                    Map<Path, long[]> stamps = new HashMap<>();
+                    for (Path source : files) {
+                        File file = source.toFile();
+                        stamps.put(source, new long[]{file.lastModified(), file.length()});
+                    }
+                    DependencyRecorder recorder = new DependencyRecorder();
+                    CompilerService.Result result = compilerService.compileInto(files, outputDir, recorder::attach);
+                    return new TaskOutcome(task, files, stamps, result, recorder);
+                });
+            }
+            List<TaskOutcome> outcomes = calls.size() == 1
+                    ? Collections.singletonList(call(calls.get(0)))
+                    : invokeAll(calls);
+
+            boolean success = true;
+            for (TaskOutcome outcome : outcomes) {
+                if (outcome.result.isSuccess()) {
+                    diagnostics.addAll(outcome.result.getDiagnostics());
+                    record(outcome);
+                    continue;
+                }
+                success = false;
+                for (Path source : outcome.files) {
+                    markStale(source);
+                    // A failed task may still have written classes for some of its files
+                    SourceState state = states.get(source);
+                    Set<String> written = outcome.result.getClassOutputs().get(source);
+                    if (state != null && written != null) {
+                        state.classOutputs = new HashSet<>(state.classOutputs);
+                        state.classOutputs.addAll(written);
+                    }
+                }
+                if (deferred != null) deferred.addAll(outcome.files);
+                else diagnostics.addAll(outcome.result.getDiagnostics());
+            }
+            return success;
+        }
+
+        private static TaskOutcome call(Callable<TaskOutcome> call) throws IOException {
+            try {
+                return call.call();
+            } catch (IOException | RuntimeException e) {
+                throw e;
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        private static <T> List<T> invokeAll(List<Callable<T>> calls) throws IOException {
+            List<T> results = new ArrayList<>(calls.size());
+            for (Future<T> future : BUILD_POOL.invokeAll(calls)) {
+                try {
+                    results.add(future.get());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException("Build interrupted");
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof IOException) throw (IOException) cause;
+                    if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+                    throw new IllegalStateException(cause);
+                }
+            }
+            return results;
+        }
+
+        // Updates the state of every file of a successful task
+        private void record(TaskOutcome outcome) throws IOException {
+            for (Path source : outcome.files) {
+                UnitInfo unit = outcome.recorder.units.get(source);
+                if (unit == null) unit = new UnitInfo(); // e.g. package-info.java or an empty file
+                SourceState state = states.get(source);
+                if (state == null) {
+                    state = new SourceState();
+                    states.put(source, state);
+                }
+                byte[] abiHash = unit.abiHash();
+                if (state.abiHash == null || !Arrays.equals(state.abiHash, abiHash)) {
+                    Set<String> changed = new HashSet<>(unit.types);
+                    changed.addAll(state.types); // Covers renamed or removed types
+                    abiChangedFiles.add(source);
+                    abiChangedTypes.put(source, changed);
+                }
+                unlink(source, state.dependencies);
+                unit.dependencies.removeAll(unit.types);
+                for (String type : unit.dependencies) {
+                    dependents.computeIfAbsent(type, k -> new HashSet<>()).add(source);
+                }
+                Set<String> written = outcome.result.getClassOutputs().get(source);
+                if (written == null) written = Collections.emptySet();
+                Set<String> removedClasses = new HashSet<>(state.classOutputs);
+                removedClasses.removeAll(written);
+                deleteClassFiles(removedClasses); // Nested or local classes that no longer exist
+
+                long[] stamp = outcome.stamps.get(source);
+                state.lastModified = stamp[0];
+                state.length = stamp[1];
+                state.types = unit.types;
+                state.dependencies = unit.dependencies;
+                state.classOutputs = written;
+                state.abiHash = abiHash;
+                if (stamp[0] != source.toFile().lastModified()) state.lastModified = -1; // Edited while compiling
+                compiledAtStep.put(source, step);
+                compiledInTask.put(source, outcome.task);
+            }
+        }
+
+        // Files that compiled against an older ABI of a type that changed in this round
+        private Set<Path> staleDependents() {
+            Set<Path> stale = new TreeSet<>();
+            for (Path changed : abiChangedFiles) {
+                int changedStep = compiledAtStep.get(changed);
+                int changedTask = compiledInTask.get(changed);
+                for (String type : abiChangedTypes.get(changed)) {
+                    Set<Path> users = dependents.get(type);
+                    if (users == null) continue;
+                    for (Path user : users) {
+                        if (user.equals(changed) || !states.containsKey(user)) continue;
+                        Integer userStep = compiledAtStep.get(user);
+                        if (userStep == null || userStep < changedStep
+                                || (userStep == changedStep && compiledInTask.get(user) != changedTask)) {
+                            stale.add(user);
+                        }
+                    }
+                }
+            }
+            return stale;
+        }
+
+        private void markStale(Path source) {
+            SourceState state = states.get(source);
+            if (state != null) state.lastModified = -1;
+        }
+
+        private void unlink(Path source, Set<String> dependencies) {
+            for (String type : dependencies) {
+                Set<Path> users = dependents.get(type);
+                if (users != null && users.remove(source) && users.isEmpty()) dependents.remove(type);
+            }
+        }
+
+        // Over-approximates which files of the round each file needs compiled first: any file that
+        // declares a top-level type whose simple name it mentions, plus whatever the last compile
+        // recorded. Extra edges only cost parallelism.
+        private Map<Path, Set<Path>> parseDependencies(Set<Path> round) throws IOException {
+            List<Path> files = new ArrayList<>(round);
+            int parts = Math.min(PARALLELISM, files.size() / MIN_FILES_PER_TASK);
+            List<Callable<List<ParsedUnit>>> calls = new ArrayList<>(parts);
+            for (int i = 0; i < parts; i++) {
+                List<Path> part = files.subList(i * files.size() / parts, (i + 1) * files.size() / parts);
+                calls.add(() -> {
+                    List<ParsedUnit> units = new ArrayList<>(part.size());
+                    compilerService.parse(part, unit -> units.add(new ParsedUnit(unit)));
+                    return units;
+                });
+            }
+            Map<String, Set<Path>> bySimpleName = new HashMap<>();
+            Map<String, Path> byQualifiedName = new HashMap<>();
+            List<ParsedUnit> units = new ArrayList<>(files.size());
+            for (List<ParsedUnit> part : invokeAll(calls)) units.addAll(part);
+            for (ParsedUnit unit : units) {
+                for (String name : unit.declared) {
+                    bySimpleName.computeIfAbsent(name.substring(name.lastIndexOf('.') + 1), k -> new TreeSet<>()).add(unit.source);
+                    byQualifiedName.put(name, unit.source);
+                }
+            }
+
+            Map<Path, Set<Path>> edges = new HashMap<>();
+            for (ParsedUnit unit : units) {
+                Set<Path> needs = new TreeSet<>();
+                for (String name : unit.names) {
+                    Set<Path> owners = bySimpleName.get(name);
+                    if (owners != null) needs.addAll(owners);
+                }
+                SourceState state = states.get(unit.source);
+                if (state != null) {
+                    for (String type : state.dependencies) {
+                        Path owner = byQualifiedName.get(type);
+                        if (owner != null) needs.add(owner);
+                    }
+                }
+                needs.remove(unit.source);
+                edges.put(unit.source, needs);
+            }
+            return edges;
+        }
+
+        // Strongly connected components of the graph, grouped into levels: every component depends
+        // only on components of earlier levels. Tarjan's algorithm emits a component after all the
+        // components it reaches, so each level is known when its component is emitted.
+        private static List<List<List<Path>>> planLevels(Set<Path> files, Map<Path, Set<Path>> edges) {
+            Tarjan tarjan = new Tarjan(edges);
+            for (Path file : files) {
+                if (!tarjan.index.containsKey(file)) tarjan.connect(file);
+            }
+            Map<Path, Integer> levelOf = new HashMap<>();
+            List<List<List<Path>>> levels = new ArrayList<>();
+            for (List<Path> component : tarjan.components) {
+                int level = 0;
+                for (Path file : component) {
+                    for (Path needed : edges.getOrDefault(file, Collections.emptySet())) {
+                        Integer neededLevel = levelOf.get(needed);
+                        if (neededLevel != null) level = Math.max(level, neededLevel + 1);
+                    }
+                }
+                for (Path file : component) levelOf.put(file, level);
+                while (levels.size() <= level) levels.add(new ArrayList<>());
+                Collections.sort(component);
+                levels.get(level).add(component);
+            }
+            return levels;
+        }
+
+        private static class Tarjan {
+            final Map<Path, Set<Path>> edges;
+            final Map<Path, Integer> index = new HashMap<>();
+            final Map<Path, Integer> lowLink = new HashMap<>();
+            final Deque<Path> stack = new ArrayDeque<>();
+            final Set<Path> onStack = new HashSet<>();
+            final List<List<Path>> components = new ArrayList<>();
+
+            Tarjan(Map<Path, Set<Path>> edges) {
+                this.edges = edges;
+            }
+
+            // Depth-first from root without recursion: visiting holds the files on the current
+            // path, each with an iterator over the dependencies it has yet to look at, so a long
+            // chain of files cannot overflow the thread's stack
+            void connect(Path root) {
+                Deque<Path> visiting = new ArrayDeque<>();
+                Deque<Iterator<Path>> remaining = new ArrayDeque<>();
+                visit(root, visiting, remaining);
+                while (!visiting.isEmpty()) {
+                    Path file = visiting.peek();
+                    Iterator<Path> dependencies = remaining.peek();
+                    if (dependencies.hasNext()) {
+                        Path needed = dependencies.next();
+                        if (!index.containsKey(needed)) {
+                            visit(needed, visiting, remaining);
+                        } else if (onStack.contains(needed)) {
+                            lowLink.put(file, Math.min(lowLink.get(file), index.get(needed)));
+                        }
+                        continue;
+                    }
+                    visiting.pop();
+                    remaining.pop();
+                    if (lowLink.get(file).equals(index.get(file))) {
+                        List<Path> component = new ArrayList<>();
+                        Path member;
+                        do {
+                            member = stack.pop();
+                            onStack.remove(member);
+                            component.add(member);
+                        } while (!member.equals(file));
+                        components.add(component);
+                    }
+                    Path caller = visiting.peek();
+                    if (caller != null) lowLink.put(caller, Math.min(lowLink.get(caller), lowLink.get(file)));
+                }
+            }
+
+            private void visit(Path file, Deque<Path> visiting, Deque<Iterator<Path>> remaining) {
+                index.put(file, index.size());
+                lowLink.put(file, index.get(file));
+                stack.push(file);
+                onStack.add(file);
+                visiting.push(file);
+                remaining.push(edges.getOrDefault(file, Collections.emptySet()).iterator());
+            }
+        }
+
+        private static boolean dependsOnAny(List<Path> component, Map<Path, Set<Path>> edges, Set<Path> files) {
+            if (files.isEmpty()) return false;
+            for (Path file : component) {
+                for (Path needed : edges.getOrDefault(file, Collections.emptySet())) {
+                    if (files.contains(needed)) return true;
+                }
+            }
+            return false;
+        }
+
+        // Spreads the components of one level over at most PARALLELISM tasks, largest first onto
+        // the least loaded task, balancing by source size
+        private static List<List<Path>> splitIntoTasks(List<List<Path>> components) {
+            int fileCount = 0;
+            for (List<Path> component : components) fileCount += component.size();
+            int taskCount = Math.max(1, Math.min(PARALLELISM, fileCount / MIN_FILES_PER_TASK));
+            List<List<Path>> sorted = new ArrayList<>(components);
+            Map<List<Path>, Long> sizes = new IdentityHashMap<>();
+            for (List<Path> component : sorted) {
+                long size = 0;
+                for (Path file : component) size += file.toFile().length();
+                sizes.put(component, size);
+            }
+            sorted.sort((a, b) -> {
+                int bySize = Long.compare(sizes.get(b), sizes.get(a));
+                return bySize != 0 ? bySize : a.get(0).compareTo(b.get(0));
+            });
+            List<List<Path>> tasks = new ArrayList<>(taskCount);
+            long[] loads = new long[taskCount];
+            for (int i = 0; i < taskCount; i++) tasks.add(new ArrayList<>());
+            for (List<Path> component : sorted) {
+                int lightest = 0;
+                for (int i = 1; i < taskCount; i++) {
+                    if (loads[i] < loads[lightest]) lightest = i;
+                }
+                tasks.get(lightest).addAll(component);
+                loads[lightest] += sizes.get(component);
+            }
+            tasks.removeIf(List::isEmpty);
+            return tasks;
+        }
+
+        // All .java files under the root, skipping hidden directories such as the build output
+        private List<Path> findSources() throws IOException {
+            List<Path> sources = new ArrayList<>();
+            Files.walkFileTree(sourceRoot, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                    return !dir.equals(sourceRoot) && dir.getFileName().toString().startsWith(".")
+                            ? FileVisitResult.SKIP_SUBTREE : FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                    if (attrs.isRegularFile() && file.getFileName().toString().endsWith(".java")) {
+                        sources.add(file.toAbsolutePath().normalize());
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+            Collections.sort(sources);
+            return sources;
+        }
+
+        private void deleteClassFiles(Set<String> binaryNames) throws IOException {
+            for (String binaryName : binaryNames) {
+                Files.deleteIfExists(outputDir.toPath().resolve(binaryName.replace('.', File.separatorChar) + ".class"));
+            }
+        }
+
+        private static void deleteTree(Path root) throws IOException {
+            if (!Files.exists(root)) return;
+            Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                    Files.delete(file);
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult postVisitDirectory(Path dir, IOException e) throws IOException {
+                    Files.delete(dir);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+
+        // By file, then position, so merged output does not depend on which task finished first
+        private static final Comparator<Diagnostic<? extends JavaFileObject>> DIAGNOSTIC_ORDER = (a, b) -> {
+            String sourceA = a.getSource() == null ? "" : a.getSource().toUri().toString();
+            String sourceB = b.getSource() == null ? "" : b.getSource().toUri().toString();
+            int c = sourceA.compareTo(sourceB);
+            if (c == 0) c = Long.compare(a.getPosition(), b.getPosition());
+            if (c == 0) c = a.getKind().compareTo(b.getKind());
+            if (c == 0) c = a.getMessage(Locale.ROOT).compareTo(b.getMessage(Locale.ROOT));
+            return c;
+        };
+
+        private static class TaskOutcome {
+            final int task;
+            final List<Path> files;
+            final Map<Path, long[]> stamps; // Modification time and length read before compiling
+            final CompilerService.Result result;
+            final DependencyRecorder recorder;
+
+            TaskOutcome(int task, List<Path> files, Map<Path, long[]> stamps, CompilerService.Result result,
+                        DependencyRecorder recorder) {
+                this.task = task;
+                this.files = files;
+                this.stamps = stamps;
+                this.result = result;
+                this.recorder = recorder;
+            }
+        }
+
+        // Names a file declares and mentions, from its syntax tree alone
+        private static class ParsedUnit {
+            final Path source;
+            final Set<String> declared = new HashSet<>();
+            final Set<String> names = new HashSet<>();
+
+            ParsedUnit(CompilationUnitTree unit) {
+                source = Paths.get(unit.getSourceFile().toUri()).toAbsolutePath().normalize();
+                String packagePrefix = unit.getPackageName() == null ? "" : unit.getPackageName() + ".";
+                for (com.sun.source.tree.Tree type : unit.getTypeDecls()) {
+                    if (type instanceof com.sun.source.tree.ClassTree) {
+                        declared.add(packagePrefix + ((com.sun.source.tree.ClassTree) type).getSimpleName());
+                    }
+                }
+                new com.sun.source.util.TreeScanner<Void, Void>() {
+                    @Override
+                    public Void visitIdentifier(IdentifierTree node, Void unused) {
+                        names.add(node.getName().toString());
+                        return null;
+                    }
+
+                    @Override
+                    public Void visitMemberSelect(MemberSelectTree node, Void unused) {
+                        names.add(node.getIdentifier().toString());
+                        return super.visitMemberSelect(node, unused);
+                    }
+                }.scan(unit, null);
+            }
+        }
+
+        // What one compilation unit declares, references and exposes
+        private static class UnitInfo {
+            final Set<String> types = new LinkedHashSet<>();
+            final Set<String> dependencies = new HashSet<>();
+            final StringBuilder abi = new StringBuilder();
+
+            byte[] abiHash() {
+                try {
+                    return MessageDigest.getInstance("SHA-256").digest(abi.toString().getBytes(StandardCharsets.UTF_8));
+                } catch (NoSuchAlgorithmException e) {
+                    throw new IllegalStateException(e); // Every JDK ships SHA-256
+                }
+            }
+        }
+
+        // Records, after javac has attributed each top-level class, the project types it refers to
+        // and a textual form of its ABI
+        private static class DependencyRecorder implements TaskListener {
+            final Map<Path, UnitInfo> units = new HashMap<>();
+            private final Set<CompilationUnitTree> scannedImports = new HashSet<>();
+            private Trees trees;
+
+            void attach(JavacTask task) {
+                trees = Trees.instance(task);
+                task.addTaskListener(this);
+            }
+
+            @Override
+            public void started(TaskEvent e) {
+            }
+
+            @Override
+            public void finished(TaskEvent e) {
+                if (e.getKind() != TaskEvent.Kind.ANALYZE || e.getTypeElement() == null) return;
+                Path source = Paths.get(e.getSourceFile().toUri()).toAbsolutePath().normalize();
+                UnitInfo unit = units.computeIfAbsent(source, k -> new UnitInfo());
+                TypeElement type = e.getTypeElement();
+                unit.types.add(type.getQualifiedName().toString());
+                appendAbi(type, unit.abi);
+
+                ReferenceScanner scanner = new ReferenceScanner(unit.dependencies);
+                if (scannedImports.add(e.getCompilationUnit())) {
+                    // Imports sit outside every class, so scan them once per file
+                    for (com.sun.source.tree.ImportTree importTree : e.getCompilationUnit().getImports()) {
+                        scanner.scan(new TreePath(new TreePath(e.getCompilationUnit()), importTree), null);
+                    }
+                }
+                TreePath path = trees.getPath(type);
+                if (path != null) scanner.scan(path, null);
+            }
+
+            private class ReferenceScanner extends TreePathScanner<Void, Void> {
+                private final Set<String> dependencies;
+
+                ReferenceScanner(Set<String> dependencies) {
+                    this.dependencies = dependencies;
+                }
+
+                @Override
+                public Void visitIdentifier(IdentifierTree node, Void unused) {
+                    record(trees.getElement(getCurrentPath()));
+                    return super.visitIdentifier(node, unused);
+                }
+
+                @Override
+                public Void visitMemberSelect(MemberSelectTree node, Void unused) {
+                    record(trees.getElement(getCurrentPath()));
+                    return super.visitMemberSelect(node, unused);
+                }
+
+                // Members and nested types count as references to their top-level type
+                private void record(javax.lang.model.element.Element element) {
+                    while (element != null && element.getEnclosingElement() != null
+                            && !(element.getEnclosingElement() instanceof PackageElement)) {
+                        element = element.getEnclosingElement();
+                    }
+                    if (element instanceof TypeElement) {
+                        dependencies.add(((TypeElement) element).getQualifiedName().toString());
+                    }
+                }
+            }
+
+            private static void appendAbi(TypeElement type, StringBuilder sb) {
+                sb.append(type.getKind()).append(' ').append(type.getModifiers()).append(' ')
+                        .append(type.getQualifiedName()).append(type.getTypeParameters())
+                        .append(" extends ").append(type.getSuperclass())
+                        .append(" implements ").append(type.getInterfaces())
+                        .append(' ').append(type.getAnnotationMirrors()).append('\n');
+                for (javax.lang.model.element.Element member : type.getEnclosedElements()) {
+                    if (member.getModifiers().contains(javax.lang.model.element.Modifier.PRIVATE)) continue;
+                    if (member instanceof TypeElement) {
+                        appendAbi((TypeElement) member, sb);
+                        continue;
+                    }
+                    sb.append(member.getKind()).append(' ').append(member.getModifiers()).append(' ')
+                            .append(member.getSimpleName()).append(' ').append(member.asType());
+                    if (member instanceof VariableElement) {
+                        // Constants are inlined into their users
+                        sb.append(" = ").append(((VariableElement) member).getConstantValue());
+                    } else if (member instanceof ExecutableElement) {
+                        ExecutableElement method = (ExecutableElement) member;
+                        sb.append(" throws ").append(method.getThrownTypes()).append(" default ").append(method.getDefaultValue());
+                    }
+                    sb.append('\n');
+                }
+            }
+        }
+
+        public static class BuildResult {
+            private final boolean success;
+            private final List<Diagnostic<? extends JavaFileObject>> diagnostics;
+            private final int compiledFiles;
+            private final int totalFiles;
+            private final int rounds;
+            private final long nanos;
+
+            BuildResult(boolean success, List<Diagnostic<? extends JavaFileObject>> diagnostics, int compiledFiles,
+                        int totalFiles, int rounds, long nanos) {
+                this.success = success;
+                this.diagnostics = diagnostics;
+                this.compiledFiles = compiledFiles;
+                this.totalFiles = totalFiles;
+                this.rounds = rounds;
+                this.nanos = nanos;
+            }
+
+            public boolean isSuccess() {
+                return success;
+            }
+
+            public List<Diagnostic<? extends JavaFileObject>> getDiagnostics() {
+                return diagnostics;
+            }
+
+            public String describe() {
+                if (compiledFiles == 0 && success) {
+                    return "Project is up to date (" + totalFiles + " files, " + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms).";
+                }
+                return compiledFiles + " of " + totalFiles + " files compiled in " + rounds
+                        + (rounds == 1 ? " round" : " rounds") + " (" + TimeUnit.NANOSECONDS.toMillis(nanos) + " ms).";
+            }
+        }
+    }
+
+    // Source file object backed by a string, for compiling the editor buffer without saving it
+    private static class MemorySource extends SimpleJavaFileObject {
+        private final CharSequence content;
+
+        public MemorySource(String className, CharSequence content) {
+            super(URI.create("string:///" + className.replace('.', '/') + Kind.SOURCE.extension), Kind.SOURCE);
+            this.content = content;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return content;
+        }
+    }
+
+    // Class file object that keeps the bytecode javac writes in a byte array
+    private static class MemoryClassFile extends SimpleJavaFileObject {
+        private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+        public MemoryClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            bytes.reset();
+            return bytes;
+        }
+
+        public byte[] getBytes() {
+            return bytes.toByteArray();
+        }
+    }
+
+    // Sends every class javac generates to a MemoryClassFile instead of the file system
+    private static class MemoryFileManager extends ForwardingJavaFileManager<StandardJavaFileManager> {
+        private final Map<String, MemoryClassFile> classFiles = new LinkedHashMap<>();
+
+        public MemoryFileManager(StandardJavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className, JavaFileObject.Kind kind,
+                                                   FileObject sibling) throws IOException {
+            if (kind != JavaFileObject.Kind.CLASS) {
+                return super.getJavaFileForOutput(location, className, kind, sibling);
+            }
+            MemoryClassFile classFile = new MemoryClassFile(className);
+            classFiles.put(className, classFile);
+            return classFile;
+        }
+
+        // Bytecode of every generated class, by binary name
+        public Map<String, byte[]> getClassBytes() {
+            Map<String, byte[]> result = new HashMap<>();
+            for (Map.Entry<String, MemoryClassFile> entry : classFiles.entrySet()) {
+                result.put(entry.getKey(), entry.getValue().getBytes());
+            }
+            return result;
+        }
+    }
+
+    // Defines classes from bytecode held in memory
+    private static class MemoryClassLoader extends ClassLoader {
+        private final Map<String, byte[]> classBytes;
+
+        public MemoryClassLoader(Map<String, byte[]> classBytes, ClassLoader parent) {
+            super(parent);
+            this.classBytes = classBytes;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes = classBytes.get(name);
+            if (bytes == null) throw new ClassNotFoundException(name);
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+
+    // Helper method to format compiler diagnostics
+    private static String formatDiagnostic(Diagnostic<? extends JavaFileObject> diagnostic) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(diagnostic.getKind()).append(": ");
+        if (diagnostic.getSource() != null) {
+            sb.append(diagnostic.getSource().getName()).append(":");
+        }
+        sb.append(diagnostic.getLineNumber()).append(": ");
+        sb.append(diagnostic.getMessage(Locale.getDefault()));
+        return sb.toString();
+    }
+
+    // Runs a compiled program in a JVM from the pool, with its output in the run's tab and its
+    // stdin fed from the run's input file or the input field. Returns when the JVM has exited.
+    private void runInChildJvm(RunSession run, Launch launch) {
+        if (run.stopped) {
+            run.finish("stopped");
+            return;
+        }
+        PrintStream console = new PrintStream(new ConsoleSink(run::appendNow), true);
+        RunLimits limits = runLimits;
+        Process child;
+        try {
+            child = jvmPool.take();
+        } catch (IOException e) {
+            console.print("Could not start a JVM for the program: " + e.getMessage() + "\n");
+            console.close();
+            run.finish("failed");
+            return;
+        }
+        run.process = child;
+        if (run.stopped) child.destroyForcibly(); // Stopped while the JVM was being taken
+        run.setStatus("running");
+        ResourceGovernor.Watch watch = ResourceGovernor.watch(child, limits);
+        Thread stdout = pump(child.getInputStream(), console, watch, "program-stdout");
+        ChildStatusReader stderr = new ChildStatusReader(child.getErrorStream(), console::print);
+        String status = "failed";
+        try {
+            console.print("=== Running " + launch.className + ".main ===\n\n");
+            long start = System.nanoTime();
+            PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.RUN);
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(child.getOutputStream()));
+            ChildRunner.writeRequest(request, launch.className, launch.classPath, launch.classBytes, true);
+            request.flush();
+            if (run.stdinFile != null) {
+                feed(run.stdinFile, child.getOutputStream());
+            } else {
+                run.input = new StdinChannel(child.getOutputStream(), Integer.getInteger("runner.stdinKb", 1024) << 10);
+                SwingUtilities.invokeLater(this::updateInputField);
+            }
+
+            int exitCode = child.waitFor();
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+            stdout.join();
+            stderr.join();
+            if (stderr.errorLine > 0 && stderr.errorFile.equals(run.sourceName)) {
+                markRuntimeError(run.document, stderr.errorLine, stderr.errorMessage);
+            }
+            timer.stop(stderr.runCpuNanos, -1, launch.className);
+            if (stderr.classLoadNanos >= 0) {
+                PhaseMetrics.INSTANCE.record(PhaseMetrics.Phase.CLASS_LOAD, stderr.classLoadNanos, -1, -1, launch.className);
+            }
+            String reason = watch.reason(exitCode, stderr.peakHeap);
+            if (run.stopped) {
+                status = "stopped";
+            } else if (reason != null) {
+                console.print("\n=== Terminated: " + reason + " (after " + millis + " ms) ===\n");
+                status = "killed";
+            } else {
+                console.print("\n=== Execution finished" + (exitCode != 0 ? " with exit code " + exitCode : "")
+                        + " in " + millis + " ms, peak heap " + formatBytes(stderr.peakHeap) + " ===\n");
+                status = "exit " + exitCode;
+            }
+        } catch (InterruptedException e) {
+            child.destroyForcibly(); // Stopped by the user
+            status = "stopped";
+            Thread.currentThread().interrupt();
+        } catch (IOException e) {
+            child.destroyForcibly();
+            if (run.stopped) {
+                status = "stopped";
+            } else {
+                console.print("Error starting the program: " + e.getMessage() + "\n");
+            }
+        } finally {
+            watch.close();
+            run.process = null;
+            console.close(); // Drains what is left in the sink
+            run.finish(status);
+        }
+    }
+
+    // Marks the line of the editor where a run failed, from the frame its child JVM reported
+    private void markRuntimeError(Document document, int line, String message) {
+        SwingUtilities.invokeLater(() -> {
+            if (codeArea.getDocument() != document) return;
+            errorMarkers.mark(ErrorMarkerIndex.Origin.RUN, line, true, message);
+            highlightFirstError(ErrorMarkerIndex.Origin.RUN);
+        });
+    }
+
+    // A running program's stdin as the IDE sees it. Writers copy into a ring buffer and one thread
+    // drains the buffer straight into the child's pipe, as fast as the program reads. offer never
+    // blocks, so the event thread can use it; write waits for room, which paces a file being
+    // streamed in by the program's reading rather than by the IDE. Capacity from runner.stdinKb.
+    private static class StdinChannel {
+        private final byte[] ring;
+        private final OutputStream out;
+        private int head; // Next byte to drain
+        private int size;
+        private boolean closed;
+        private IOException failure;
+
+        StdinChannel(OutputStream out, int capacity) {
+            this.out = out;
+            this.ring = new byte[capacity];
+            Thread drainer = new Thread(this::drain, "program-stdin");
+            drainer.setDaemon(true);
+            drainer.start();
+        }
+
+        // Adds all of data, or nothing if there is not room for it right now
+        synchronized boolean offer(byte[] data) throws IOException {
+            checkOpen();
+            if (ring.length - size < data.length) return false;
+            put(data, 0, data.length);
+            return true;
+        }
+
+        // Adds data, waiting while the buffer is full
+        synchronized void write(byte[] data, int offset, int length) throws IOException, InterruptedException {
+            while (length > 0) {
+                while (size == ring.length && !closed && failure == null) wait();
+                checkOpen();
+                int n = Math.min(length, ring.length - size);
+                put(data, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        // The program sees end of input once what is buffered has been read
+        synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        // Streams a file in on its own thread; done gets null or the error
+        void sendFile(File file, Consumer<IOException> done) {
+            Thread thread = new Thread(() -> {
+                byte[] buffer = new byte[1 << 16];
+                try (InputStream in = Files.newInputStream(file.toPath())) {
+                    int n;
+                    while ((n = in.read(buffer)) > 0) write(buffer, 0, n);
+                    done.accept(null);
+                } catch (IOException e) {
+                    done.accept(e);
+                } catch (InterruptedException ignored) {
+                    // Abandoned
+                }
+            }, "program-stdin-file");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void checkOpen() throws IOException {
+            if (failure != null) throw new IOException("The program is no longer reading its input", failure);
+            if (closed) throw new IOException("Input has been closed");
+        }
+
+        private void put(byte[] data, int offset, int length) {
+            int tail = (head + size) % ring.length;
+            int first = Math.min(length, ring.length - tail);
+            System.arraycopy(data, offset, ring, tail, first);
+            System.arraycopy(data, offset + first, ring, 0, length - first);
+            size += length;
+            notifyAll();
+        }
+
+        private void drain() {
+            try {
+                while (true) {
+                    int start;
+                    int n;
+                    synchronized (this) {
+                        while (size == 0 && !closed) wait();
+                        if (size == 0) break; // Closed and drained
+                        start = head;
+                        n = Math.min(size, ring.length - head);
+                    }
+                    // Writers only fill the free part of the ring, so this slice is stable
+                    out.write(ring, start, n);
+                    out.flush();
+                    synchronized (this) {
+                        head = (head + n) % ring.length;
+                        size -= n;
+                        notifyAll();
+                    }
+                }
+            } catch (IOException e) {
+                synchronized (this) {
+                    failure = e;
+                    notifyAll();
+                }
+            } catch (InterruptedException ignored) {
+                // Daemon thread; nothing else interrupts it
+            } finally {
+                try {
+                    out.close();
+                } catch (IOException ignored) {
+                    // The child has exited
+                }
+            }
+        }
+    }
+
+    // Writes a file to a program's stdin and then closes it, without holding up the caller
+    private static void feed(File file, OutputStream stdin) {
+        Thread thread = new Thread(() -> {
+            try (OutputStream out = stdin) {
+                Files.copy(file.toPath(), out);
+            } catch (IOException ignored) {
+                // The program exited without reading all of its input
+            }
+        }, "program-stdin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // The same for a stream, which is left open
+    private static void feed(InputStream in, OutputStream stdin) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try (OutputStream out = stdin) {
+                int n;
+                while ((n = in.read(buffer)) > 0) {
+                    out.write(buffer, 0, n);
+                    out.flush();
+                }
+            } catch (IOException ignored) {
+                // The program exited without reading all of its input
+            }
+        }, "program-stdin");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Copies a child's output stream into the console until the child closes it
+    private static Thread pump(InputStream in, PrintStream console, ResourceGovernor.Watch watch, String name) {
+        Thread thread = new Thread(() -> {
+            byte[] buffer = new byte[8192];
+            try {
+                int n;
+                while ((n = in.read(buffer)) > 0 && watch.countOutput(n)) {
+                    console.write(buffer, 0, n); // PrintStream serialises the two pumps
+                }
+            } catch (IOException ignored) {
+                // The child was killed
+            }
+        }, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    // What a successful compile produced: the class to run and where its class files are
+    private static class Launch {
+        final String className;
+        final List<File> classPath;
+        final Map<String, byte[]> classBytes;
+
+        Launch(String className, List<File> classPath, Map<String, byte[]> classBytes) {
+            this.className = className;
+            this.classPath = classPath;
+            this.classBytes = classBytes;
+        }
+    }
+
+    // Checks the editor as the user types: once the text has been left alone for a moment, javac
+    // parses and attributes a snapshot of it on a background thread, without generating code, and
+    // its diagnostics become squiggles and gutter marks. Each edit makes the running check stale,
+    // and javac stops at its next phase; only the newest snapshot waits behind it. The pause before
+    // a check grows with the time the last one took, so typing without a break costs at most about
+    // half of one core, at low priority.
+    private class BackgroundAnalysis implements DocumentListener {
+        private static final int MIN_DELAY_MS = 500;
+        private static final int MAX_DELAY_MS = 10_000;
+        private static final int MAX_LENGTH = 2 << 20; // Larger files are only checked by Compile & Run
+
+        private final javax.swing.Timer timer;
+        // At most one check running and one waiting; a newer snapshot replaces the waiting one
+        private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1), r -> {
+                    Thread thread = new Thread(r, "background-check");
+                    thread.setDaemon(true);
+                    thread.setPriority(Thread.MIN_PRIORITY);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+        // Bumped by every edit; a check of an older version is stale
+        private final AtomicLong version = new AtomicLong();
+        private volatile long lastMillis;
+        private final List<Object> squiggles = new ArrayList<>();
+        private final Highlighter.HighlightPainter errorSquiggle = new SquigglePainter(new Color(220, 50, 50));
+        private final Highlighter.HighlightPainter warningSquiggle = new SquigglePainter(new Color(220, 160, 0));
+        private boolean enabled = !"false".equals(System.getProperty("analysis.enabled"));
+
+        BackgroundAnalysis() {
+            timer = new javax.swing.Timer(MIN_DELAY_MS, e -> start());
+            timer.setRepeats(false);
+        }
+
+        boolean isEnabled() {
+            return enabled;
+        }
+
+        void setEnabled(boolean enabled) {
+            this.enabled = enabled;
+            version.incrementAndGet();
+            if (enabled) {
+                schedule();
+            } else {
+                timer.stop();
+                clearResults();
+            }
+        }
+
+        // The text, or what it is checked against, was replaced: drop the old results and check again
+        void restart() {
+            version.incrementAndGet();
+            clearSquiggles();
+            if (enabled) schedule();
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            edited();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            edited();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes from syntax highlighting leave the text as it was
+        }
+
+        private void edited() {
+            version.incrementAndGet();
+            if (enabled) schedule();
+        }
+
+        private void schedule() {
+            timer.setInitialDelay((int) Math.max(MIN_DELAY_MS, Math.min(lastMillis, MAX_DELAY_MS)));
+            timer.restart();
+        }
+
+        // On the EDT; the snapshot is a view of the document's text, so nothing is copied here
+        private void start() {
+            Document document = codeArea.getDocument();
+            if (!enabled || compilerService == null || document.getLength() > MAX_LENGTH) return;
+            CharSequence snapshot = EditorDocument.textOf(document);
+            long checked = version.get();
+            String fileName = currentFile != null ? currentFile.getName().replace(".java", "") : null;
+            ProjectBuilder project = projectBuilder != null && currentFile != null && projectBuilder.contains(currentFile)
+                    ? projectBuilder : null;
+            executor.execute(() -> check(document, snapshot, checked, fileName, project));
+        }
+
+        private void check(Document document, CharSequence snapshot, long checked, String fileName, ProjectBuilder project) {
+            if (version.get() != checked) return;
+            PhaseMetrics.Timer phaseTimer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.ANALYZE);
+            long start = System.nanoTime();
+            String className = qualifiedClassName(snapshot, fileName);
+            List<Diagnostic<? extends JavaFileObject>> diagnostics = compilerService.analyze(className, snapshot,
+                    project != null ? project.getSourceRoot() : null, project != null ? project.getOutputDir() : null,
+                    () -> version.get() != checked);
+            lastMillis = (System.nanoTime() - start) / 1_000_000;
+            phaseTimer.stop((diagnostics == null ? "stale " : "") + className);
+            if (diagnostics != null) SwingUtilities.invokeLater(() -> publish(document, checked, diagnostics));
+        }
+
+        // Diagnostic positions are offsets into the snapshot, which is still the document's text
+        // only if nothing was edited since
+        private void publish(Document document, long checked, List<Diagnostic<? extends JavaFileObject>> diagnostics) {
+            if (!enabled || version.get() != checked || codeArea.getDocument() != document) return;
+            clearResults();
+            int length = document.getLength();
+            for (Diagnostic<? extends JavaFileObject> d : diagnostics) {
+                // Other files of a project come from the source path and are not on screen
+                if (d.getKind() == Diagnostic.Kind.NOTE || d.getSource() == null
+                        || "file".equals(d.getSource().toUri().getScheme())) continue;
+                boolean error = d.getKind() == Diagnostic.Kind.ERROR;
+                errorMarkers.mark(ErrorMarkerIndex.Origin.COMPILE, (int) d.getLineNumber(), error,
+                        d.getMessage(Locale.getDefault()));
+                long start = d.getStartPosition() >= 0 ? d.getStartPosition() : d.getPosition();
+                if (start < 0) continue;
+                int from = (int) Math.min(start, length);
+                int to = (int) Math.min(Math.max(d.getEndPosition(), start + 1), length);
+                if (from == to && from > 0) from--; // At the end of the text: underline the last character
+                try {
+                    squiggles.add(codeArea.getHighlighter().addHighlight(from, to, error ? errorSquiggle : warningSquiggle));
+                } catch (BadLocationException e) {
+                    // Clamped to the document above
+                }
+            }
+        }
+
+        private void clearResults() {
+            clearSquiggles();
+            errorMarkers.clear(ErrorMarkerIndex.Origin.COMPILE);
+        }
+
+        private void clearSquiggles() {
+            Highlighter highlighter = codeArea.getHighlighter();
+            for (Object squiggle : squiggles) highlighter.removeHighlight(squiggle);
+            squiggles.clear();
+        }
+
+        void shutdown() {
+            timer.stop();
+            executor.shutdownNow();
+        }
+    }
+
+    // One requested run of a program: its console tab, its stdin and, while running, its JVM
+    private class RunSession {
+        final String name;
+        final File stdinFile; // Null when the input field is the program's stdin
+        Document document;    // The editor document the program was compiled from
+        String sourceName;    // Its file name as stack frames give it
+        final JTextArea area = newConsoleArea();
+        final JScrollPane scrollPane = new JScrollPane(area);
+        final BoundedConsole console = new BoundedConsole(area, scrollPane);
+        final JPanel tabHeader = new JPanel(new FlowLayout(FlowLayout.LEFT, 4, 0));
+        private final JLabel tabLabel;
+        volatile Future<?> future;
+        volatile Process process;
+        volatile StdinChannel input; // Null unless the input field feeds a running program
+        volatile boolean stopped;
+        volatile boolean finished;
+
+        RunSession(String name, File stdinFile) {
+            this.name = name;
+            this.stdinFile = stdinFile;
+            tabLabel = new JLabel(name + " (waiting)");
+            JButton closeButton = new JButton("\u00D7");
+            closeButton.setMargin(new Insets(0, 2, 0, 2));
+            closeButton.setBorderPainted(false);
+            closeButton.setContentAreaFilled(false);
+            closeButton.setToolTipText("Stop this run and close its tab");
+            closeButton.addActionListener(e -> closeRunSession(this));
+            tabHeader.setOpaque(false);
+            tabHeader.add(tabLabel);
+            tabHeader.add(closeButton);
+        }
+
+        void append(String text) {
+            SwingUtilities.invokeLater(() -> appendNow(text));
+        }
+
+        void appendNow(String text) {
+            console.append(text);
+            area.setCaretPosition(area.getDocument().getLength());
+        }
+
+        void setStatus(String status) {
+            SwingUtilities.invokeLater(() -> tabLabel.setText(name + " (" + status + ")"));
+        }
+
+        void finish(String status) {
+            finished = true;
+            StdinChannel channel = input;
+            input = null;
+            if (channel != null) channel.close();
+            setStatus(status);
+            SwingUtilities.invokeLater(JavaGUICompilerapp1.this::updateInputField);
+        }
+
+        void stop() {
+            if (finished || stopped) return;
+            stopped = true;
+            append("\nExecution stopped by user.\n");
+            Future<?> job = future;
+            if (job != null && job.cancel(true)) runScheduler.purge(); // Drops it from the queue if it has not started
+            Process child = process;
+            if (child != null) child.destroyForcibly(); // Works even if the program ignores interrupts
+            if (child == null && job != null) finish("stopped"); // Was still queued
+        }
+    }
+
+    // Runs programs on a bounded set of worker threads; compiles have their own thread, since a run
+    // holds its worker until the program exits, which may be never. Jobs beyond the limit wait in a
+    // queue ordered by rank, then by arrival: a job's rank is its position within its batch, so
+    // the first run of a new request is not stuck behind the rest of an earlier, larger batch.
+    private static class RunScheduler {
+        private final ThreadPoolExecutor workers;
+        private final AtomicLong sequence = new AtomicLong();
+
+        public RunScheduler(int limit) {
+            AtomicLong threadCount = new AtomicLong();
+            workers = new ThreadPoolExecutor(limit, limit, 30, TimeUnit.SECONDS, new PriorityBlockingQueue<>(), r -> {
+                Thread thread = new Thread(r, "run-worker-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            });
+            workers.allowCoreThreadTimeOut(true);
+        }
+
+        public Future<?> submit(Runnable job) {
+            return submit(job, 0);
+        }
+
+        public Future<?> submit(Runnable job, int rank) {
+            Job task = new Job(job, rank, sequence.getAndIncrement());
+            workers.execute(task);
+            return task;
+        }
+
+        public synchronized void setLimit(int limit) {
+            // The core size may never exceed the maximum, so change them in a safe order
+            if (limit > workers.getMaximumPoolSize()) {
+                workers.setMaximumPoolSize(limit);
+                workers.setCorePoolSize(limit);
+            } else {
+                workers.setCorePoolSize(limit);
+                workers.setMaximumPoolSize(limit);
+            }
+        }
+
+        public int getLimit() {
+            return workers.getMaximumPoolSize();
+        }
+
+        // Removes cancelled jobs from the queue
+        public void purge() {
+            workers.purge();
+        }
+
+        public String describe() {
+            return workers.getActiveCount() + " running, " + workers.getQueue().size() + " queued";
+        }
+
+        public void shutdownNow() {
+            workers.shutdownNow();
+        }
+
+        private static class Job extends FutureTask<Void> implements Comparable<Job> {
+            private final int rank;
+            private final long sequence;
+
+            Job(Runnable job, int rank, long sequence) {
+                super(job, null);
+                this.rank = rank;
+                this.sequence = sequence;
+            }
+
+            @Override
+            public int compareTo(Job other) {
+                return rank != other.rank ? Integer.compare(rank, other.rank) : Long.compare(sequence, other.sequence);
+            }
+        }
+    }
+
+    // Child JVMs started ahead of time and parked in ChildRunner, so a run starts by writing one
+    // request down a pipe instead of paying for JVM start-up. Taking a JVM starts a replacement
+    // in the background; a pooled JVM runs one program and exits.
+    private static class JvmPool {
+        private final int size;
+        private volatile int heapMegabytes;
+        private final Deque<Process> idle = new ArrayDeque<>();
+        private final ExecutorService starter = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "jvm-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        private volatile boolean shutdown;
+
+        public JvmPool(int size, int heapMegabytes) {
+            this.size = size;
+            this.heapMegabytes = heapMegabytes;
+            refill();
+        }
+
+        // Replaces the idle JVMs, whose -Xmx is fixed when they start
+        public void setHeapMegabytes(int heapMegabytes) {
+            if (heapMegabytes == this.heapMegabytes) return;
+            this.heapMegabytes = heapMegabytes;
+            synchronized (idle) {
+                for (Process process : idle) process.destroyForcibly();
+                idle.clear();
+            }
+            refill();
+        }
+
+        // A warm JVM if one is ready, otherwise one started now
+        public Process take() throws IOException {
+            Process process;
+            synchronized (idle) {
+                do {
+                    process = idle.poll();
+                } while (process != null && !process.isAlive());
+            }
+            refill();
+            return process != null ? process : start(heapMegabytes);
+        }
+
+        private void refill() {
+            starter.execute(() -> {
+                while (!shutdown) {
+                    synchronized (idle) {
+                        if (idle.size() >= size) return;
+                    }
+                    try {
+                        int heap = heapMegabytes;
+                        Process process = start(heap);
+                        synchronized (idle) {
+                            if (shutdown || heap != heapMegabytes) process.destroyForcibly();
+                            else idle.add(process);
+                        }
+                    } catch (IOException e) {
+                        return; // take() starts one on demand and reports the error
+                    }
+                }
+            });
+        }
+
+        private static Process start(int heapMegabytes) throws IOException {
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+            if (heapMegabytes > 0) {
+                command.add("-Xmx" + heapMegabytes + "m");
+                command.add("-XX:+ExitOnOutOfMemoryError");
+            }
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(ChildRunner.class.getName());
+            return new ProcessBuilder(command).start();
+        }
+
+        public void shutdown() {
+            shutdown = true;
+            starter.shutdownNow();
+            synchronized (idle) {
+                for (Process process : idle) process.destroyForcibly();
+                idle.clear();
+            }
+        }
+    }
+
+    // Limits on a single run, where 0 means no limit. The defaults come from the system properties
+    // limits.cpu and limits.wall (seconds) and limits.heap and limits.output (megabytes).
+    private static class RunLimits {
+        final long cpuMillis;
+        final long wallMillis;
+        final int heapMegabytes;
+        final long outputBytes;
+
+        RunLimits(long cpuMillis, long wallMillis, int heapMegabytes, long outputBytes) {
+            this.cpuMillis = cpuMillis;
+            this.wallMillis = wallMillis;
+            this.heapMegabytes = heapMegabytes;
+            this.outputBytes = outputBytes;
+        }
+
+        static RunLimits fromProperties() {
+            return new RunLimits(Long.getLong("limits.cpu", 30) * 1000, Long.getLong("limits.wall", 0) * 1000,
+                    Integer.getInteger("limits.heap", 512), Long.getLong("limits.output", 64) << 20);
+        }
+
+        RunLimits withWallMillis(long wallMillis) {
+            return new RunLimits(cpuMillis, wallMillis, heapMegabytes, outputBytes);
+        }
+
+        String describe() {
+            return "CPU time " + (cpuMillis > 0 ? formatSeconds(cpuMillis) : "unlimited")
+                    + ", wall clock " + (wallMillis > 0 ? formatSeconds(wallMillis) : "unlimited")
+                    + ", heap " + (heapMegabytes > 0 ? heapMegabytes + " MB" : "unlimited")
+                    + ", output " + (outputBytes > 0 ? formatBytes(outputBytes) : "unlimited");
+        }
+    }
+
+    // Enforces RunLimits from outside the child JVMs, so the program's own code pays nothing for
+    // it. One thread samples the CPU time and age of every watched process each CHECK_MILLIS; the
+    // threads copying a program's output count the bytes; the heap limit is the child's -Xmx. A
+    // process over a limit is killed, and its Watch keeps the reason for the console.
+    private static class ResourceGovernor {
+        private static final long CHECK_MILLIS = 50;
+        private static final ResourceGovernor INSTANCE = new ResourceGovernor();
+
+        private final Set<Watch> watches = ConcurrentHashMap.newKeySet();
+        private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "run-governor");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        private ResourceGovernor() {
+            timer.scheduleWithFixedDelay(this::check, CHECK_MILLIS, CHECK_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        static Watch watch(Process process, RunLimits limits) {
+            Watch watch = INSTANCE.new Watch(process, limits);
+            INSTANCE.watches.add(watch);
+            return watch;
+        }
+
+        private void check() {
+            for (Watch watch : watches) {
+                if (watch.process.isAlive()) watch.check();
+                else watches.remove(watch);
+            }
+        }
+
+        final class Watch {
+            private final Process process;
+            private final RunLimits limits;
+            private final long startNanos = System.nanoTime();
+            private final long startCpuNanos; // Spent warming up in the pool, before this run
+            private long outputBytes;         // Only used by the thread reading the output
+            private volatile String reason;
+
+            Watch(Process process, RunLimits limits) {
+                this.process = process;
+                this.limits = limits;
+                this.startCpuNanos = cpuNanos();
+            }
+
+            // -1 where the platform does not report it
+            private long cpuNanos() {
+                return process.toHandle().info().totalCpuDuration().map(Duration::toNanos).orElse(-1L);
+            }
+
+            private void check() {
+                if (limits.wallMillis > 0 && System.nanoTime() - startNanos > TimeUnit.MILLISECONDS.toNanos(limits.wallMillis)) {
+                    kill("wall-clock limit of " + formatSeconds(limits.wallMillis) + " exceeded");
+                } else if (limits.cpuMillis > 0 && startCpuNanos >= 0
+                        && cpuNanos() - startCpuNanos > TimeUnit.MILLISECONDS.toNanos(limits.cpuMillis)) {
+                    kill("CPU time limit of " + formatSeconds(limits.cpuMillis) + " exceeded");
+                }
+            }
+
+            // Called with each chunk the program writes; false once it is over the output limit
+            boolean countOutput(int bytes) {
+                outputBytes += bytes;
+                if (limits.outputBytes > 0 && outputBytes > limits.outputBytes) {
+                    kill("output limit of " + formatBytes(limits.outputBytes) + " exceeded");
+                    return false;
+                }
+                return true;
+            }
+
+            synchronized void kill(String why) {
+                if (reason == null) reason = why;
+                process.destroyForcibly();
+                watches.remove(this);
+            }
+
+            // Why the process was ended, given how it exited, or null if no limit was hit. A JVM
+            // that ran out of heap exits with 3 (-XX:+ExitOnOutOfMemoryError) without running the
+            // shutdown hook that reports its peak heap.
+            String reason(int exitCode, long reportedPeakHeap) {
+                if (reason == null && limits.heapMegabytes > 0 && exitCode == 3 && reportedPeakHeap < 0) {
+                    return "heap limit of " + limits.heapMegabytes + " MB exceeded";
+                }
+                return reason;
+            }
+
+            void close() {
+                watches.remove(this);
+            }
+        }
+    }
+
+    // Entry point of the pooled child JVMs. Waits on stdin for one request (the class to run, its
+    // class path and any in-memory class files), runs its main method, and exits with 0, 1 if
+    // main threw, or whatever the program passed to System.exit. Everything on stdin after the
+    // request is the program's own input. With mergeErr the program's stdout and stderr share
+    // fd 1, so their order is kept; otherwise its stderr goes to fd 2. fd 2 also carries the JVM's
+    // own messages and, on exit, a NUL-prefixed report line read by ChildStatusReader.
+    private static class ChildRunner {
+        static void writeRequest(DataOutputStream out, String className, List<File> classPath,
+                                 Map<String, byte[]> classBytes, boolean mergeErr) throws IOException {
+            out.writeUTF(className);
+            out.writeInt(classPath.size());
+            for (File entry : classPath) out.writeUTF(entry.getAbsolutePath());
+            out.writeInt(classBytes.size());
+            for (Map.Entry<String, byte[]> entry : classBytes.entrySet()) {
+                out.writeUTF(entry.getKey());
+                out.writeInt(entry.getValue().length);
+                out.write(entry.getValue());
+            }
+            out.writeBoolean(mergeErr);
+        }
+
+        public static void main(String[] args) throws IOException {
+            warmUp();
+            // No extra buffering: what follows the request must stay in System.in for the program
+            DataInputStream in = new DataInputStream(System.in);
+            String className;
+            try {
+                className = in.readUTF();
+            } catch (EOFException e) {
+                return; // The pool shut down before this JVM was used
+            }
+            URL[] classPath = new URL[in.readInt()];
+            for (int i = 0; i < classPath.length; i++) {
+                classPath[i] = new File(in.readUTF()).toURI().toURL();
+            }
+            Map<String, byte[]> classBytes = new HashMap<>();
+            for (int i = in.readInt(); i > 0; i--) {
+                String name = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classBytes.put(name, bytes);
+            }
+            boolean mergeErr = in.readBoolean();
+            long startCpu = processCpuNanos();
+
+            // Buffered, and flushed every few milliseconds, so a program printing in a loop does not
+            // make one system call per print while prompts still show up promptly
+            PrintStream out = new PrintStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out), 1 << 16), false);
+            FileOutputStream errFile = new FileOutputStream(FileDescriptor.err);
+            PrintStream err = mergeErr ? out : new PrintStream(errFile, true);
+            System.setOut(out);
+            System.setErr(err);
+            Thread flusher = new Thread(() -> {
+                while (true) {
+                    try {
+                        Thread.sleep(10);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    out.flush();
+                }
+            }, "output-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+            // Also runs on System.exit
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                out.flush();
+                err.flush();
+                long cpu = processCpuNanos();
+                try {
+                    errFile.write((ChildStatusReader.PEAK_HEAP + peakHeap() + "\n"
+                            + ChildStatusReader.RUN_CPU + (cpu < 0 || startCpu < 0 ? -1 : cpu - startCpu) + "\n")
+                            .getBytes(StandardCharsets.UTF_8));
+                } catch (IOException ignored) {
+                    // The parent is gone
+                }
+            }));
+
+            // The program sees only the platform classes, not the IDE's
+            ClassLoader loader = new MemoryClassLoader(classBytes,
+                    new URLClassLoader(classPath, ClassLoader.getSystemClassLoader().getParent()));
+            Thread.currentThread().setContextClassLoader(loader);
+            try {
+                long loadStart = System.nanoTime();
+                Method mainMethod = Class.forName(className, true, loader).getMethod("main", String[].class);
+                mainMethod.setAccessible(true); // Like the java launcher, allow a non-public class
+                errFile.write((ChildStatusReader.CLASS_LOAD + (System.nanoTime() - loadStart) + "\n").getBytes(StandardCharsets.UTF_8));
+                mainMethod.invoke(null, (Object) new String[0]);
+            } catch (ClassNotFoundException e) {
+                out.print("Class not found: " + e.getMessage() + "\n");
+                exit(out, 1);
+            } catch (NoSuchMethodException e) {
+                out.print("main(String[] args) method not found.\n");
+                exit(out, 1);
+            } catch (InvocationTargetException e) {
+                // If the user's program throws an exception, unwrap it and print its stack trace
+                out.print("\nException in user program:\n");
+                e.getCause().printStackTrace(out);
+                reportErrorFrame(errFile, e.getCause());
+                exit(out, 1);
+            } catch (Exception | LinkageError e) {
+                out.print("Error during execution: " + e + "\n");
+                exit(out, 1);
+            }
+            out.flush();
+            // Returning lets the JVM wait for the program's non-daemon threads, as java would
+        }
+
+        private static void exit(PrintStream out, int status) {
+            out.flush();
+            System.exit(status);
+        }
+
+        // Sum of the peak usage of each heap pool, which is at least the peak of the heap as a whole
+        private static long peakHeap() {
+            long peak = 0;
+            for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+                if (pool.getType() == MemoryType.HEAP && pool.getPeakUsage() != null) peak += pool.getPeakUsage().getUsed();
+            }
+            return peak;
+        }
+
+        // CPU time of the whole JVM, or -1 where the platform does not report it
+        private static long processCpuNanos() {
+            java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+            return os instanceof com.sun.management.OperatingSystemMXBean
+                    ? ((com.sun.management.OperatingSystemMXBean) os).getProcessCpuTime() : -1;
+        }
+
+        // Tells the IDE which line of the program's own code t came from. Platform classes are in
+        // named modules and the program's in the unnamed one, which it shares only with this runner.
+        private static void reportErrorFrame(FileOutputStream errFile, Throwable t) {
+            for (Throwable cause = t; cause != null; cause = cause.getCause()) {
+                for (StackTraceElement frame : cause.getStackTrace()) {
+                    if (frame.getModuleName() != null || frame.getFileName() == null || frame.getLineNumber() <= 0
+                            || frame.getClassName().startsWith(JavaGUICompilerapp1.class.getName())) continue;
+                    String message = t.toString().replace('\n', ' ').replace('\r', ' ');
+                    try {
+                        errFile.write((ChildStatusReader.ERROR_AT + frame.getLineNumber() + "\t" + frame.getFileName() + "\t" + message + "\n")
+                                .getBytes(StandardCharsets.UTF_8));
+                    } catch (IOException ignored) {
+                        // The parent is gone
+                    }
+                    return;
+                }
+            }
+        }
+
+        // Loads and runs a little of what most programs use while the JVM waits in the pool
+        private static void warmUp() {
+            String.format("%d %s %.2f", 1, "a", 1.5);
+            new Scanner("1 a").nextInt();
+            Runnable runnable = () -> { };
+            runnable.run();
+            new StringBuilder().append(1.5).append('c').toString();
+            new ArrayList<>(Arrays.asList(3, 1, 2)).sort(null);
+            peakHeap();
+            processCpuNanos();
+        }
+    }
+
+    // The compiler, runner and lexer with no Swing involved, shared by batch mode, the command
+    // line and the API server. Safe to use from many threads: compiles share the CompilerService
+    // and every run takes a JVM of its own from the pool.
+    private static class Toolchain {
+        final CompilerService compilerService;
+        final JvmPool jvmPool;
+        final RunLimits limits;
+
+        private Toolchain(CompilerService compilerService, JvmPool jvmPool, RunLimits limits) {
+            this.compilerService = compilerService;
+            this.jvmPool = jvmPool;
+            this.limits = limits;
+        }
+
+        // Keeps jvms JVMs warm; null, after saying why on stderr, when there is no compiler
+        static Toolchain create(int jvms, RunLimits limits) {
+            CompilerService compilerService = CompilerService.create();
+            if (compilerService == null) {
+                System.err.println("No Java compiler available. Run with a JDK, not a JRE.");
+                return null;
+            }
+            return new Toolchain(compilerService, new JvmPool(jvms, limits.heapMegabytes), limits);
+        }
+
+        // Compiles source in memory as className
+        CompilerService.Result compile(String className, CharSequence source) {
+            PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.COMPILE);
+            CompilerService.Result result = compilerService.compileInMemory(className, source);
+            timer.stop((result.isCached() ? "cached " : "") + className);
+            return result;
+        }
+
+        static Launch launchOf(String className, CompilerService.Result result) {
+            return new Launch(className, Collections.<File>emptyList(), result.getClassBytes());
+        }
+
+        // Runs launch in a pooled JVM with stdin read from in (none if null) and stdout written to
+        // out. Its stderr goes to err, or shares out when err is null. Returns when the JVM has exited.
+        Execution run(Launch launch, RunLimits limits, InputStream in, OutputStream out, OutputStream err)
+                throws IOException, InterruptedException {
+            Process child = jvmPool.take();
+            long start = System.nanoTime();
+            PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.RUN);
+            ResourceGovernor.Watch watch = ResourceGovernor.watch(child, limits);
+            try {
+                ChildStatusReader status = new ChildStatusReader(child.getErrorStream(), err == null ? null : text -> {
+                    try {
+                        err.write(text.getBytes(Charset.defaultCharset()));
+                    } catch (IOException ignored) {
+                        // Nowhere left to report it
+                    }
+                });
+                DataOutputStream request = new DataOutputStream(new BufferedOutputStream(child.getOutputStream()));
+                ChildRunner.writeRequest(request, launch.className, launch.classPath, launch.classBytes, err == null);
+                request.flush();
+                if (in != null) feed(in, child.getOutputStream());
+                else child.getOutputStream().close();
+
+                byte[] buffer = new byte[8192];
+                InputStream stdout = child.getInputStream();
+                int n;
+                while ((n = stdout.read(buffer)) > 0 && watch.countOutput(n)) {
+                    out.write(buffer, 0, n);
+                }
+                int exitCode = child.waitFor();
+                long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+                status.join();
+                timer.stop(status.runCpuNanos, -1, launch.className);
+                if (status.classLoadNanos >= 0) {
+                    PhaseMetrics.INSTANCE.record(PhaseMetrics.Phase.CLASS_LOAD, status.classLoadNanos, -1, -1, launch.className);
+                }
+                return new Execution(exitCode, millis, status.peakHeap, watch.reason(exitCode, status.peakHeap));
+            } catch (IOException | InterruptedException e) {
+                child.destroyForcibly();
+                throw e;
+            } finally {
+                watch.close();
+            }
+        }
+
+        static final class Execution {
+            final int exitCode;
+            final long millis;
+            final long peakHeap;      // -1 if the JVM did not report it
+            final String killedBy;    // The limit that ended the run, or null
+
+            Execution(int exitCode, long millis, long peakHeap, String killedBy) {
+                this.exitCode = exitCode;
+                this.millis = millis;
+                this.peakHeap = peakHeap;
+                this.killedBy = killedBy;
+            }
+        }
+
+        void shutdown() {
+            jvmPool.shutdown();
+        }
+    }
+
+    // One-shot commands on a source file, for scripts and CI:
+    //   --compile Main.java               diagnostics on stderr; exit 0 if it compiled, else 1
+    //   --run Main.java [--input FILE] [--timeout S]
+    //                                     runs it with stdin from FILE or this process's stdin and
+    //                                     exits with its exit code, 124 if a run limit stopped it,
+    //                                     or 2 if it did not compile
+    //   --lex Main.java [--json]          tokens as CSV (or JSON) on stdout; exit 1 on a lexical error
+    private static class CommandLine {
+        static int run(String[] args) {
+            if (args.length < 2) {
+                System.err.println(USAGE);
+                return 2;
+            }
+            File sourceFile = new File(args[1]);
+            File input = null;
+            long timeoutMillis = 0;
+            boolean json = false;
+            try {
+                for (int i = 2; i < args.length; i++) {
+                    if (args[i].equals("--json")) json = true;
+                    else if (args[i].equals("--input")) input = new File(value(args, i++));
+                    else if (args[i].equals("--timeout")) timeoutMillis = millisValue(args, i++);
+                    else throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage() + "\n" + USAGE);
+                return 2;
+            }
+            String source;
+            try {
+                source = new String(Files.readAllBytes(sourceFile.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println("Cannot read " + sourceFile + ": " + e.getMessage());
+                return 2;
+            }
+            String className = qualifiedClassName(source, sourceFile.getName().replace(".java", ""));
+
+            if (args[0].equals("--lex")) return lex(source, json);
+
+            RunLimits limits = RunLimits.fromProperties();
+            if (timeoutMillis > 0) limits = limits.withWallMillis(timeoutMillis);
+            boolean running = args[0].equals("--run");
+            Toolchain toolchain = Toolchain.create(running ? 1 : 0, limits); // The JVM starts while we compile
+            if (toolchain == null) return 2;
+            try {
+                Launch launch = compileProgram(toolchain.compilerService, className, sourceFile, source, System.err::print, null);
+                if (!running) return launch != null ? 0 : 1;
+                if (launch == null) return 2;
+                try (InputStream in = input != null ? new FileInputStream(input) : null) {
+                    Toolchain.Execution execution = toolchain.run(launch, limits, in != null ? in : System.in, System.out, System.err);
+                    System.out.flush();
+                    if (execution.killedBy != null) {
+                        System.err.println("Terminated: " + execution.killedBy + " (after " + execution.millis + " ms)");
+                        return 124;
+                    }
+                    return execution.exitCode;
+                } catch (IOException e) {
+                    System.err.println("Could not run the program: " + e.getMessage());
+                    return 2;
+                } catch (InterruptedException e) {
+                    return 2;
+                }
+            } finally {
+                toolchain.shutdown();
+            }
+        }
+
+        // Option parsing shared by the commands. Each takes the index of an option that needs a value
+        // and throws IllegalArgumentException, with a message for the user, when the value is missing
+        // or not valid.
+        static String value(String[] args, int i) {
+            if (i + 1 >= args.length) throw new IllegalArgumentException("Missing value for " + args[i]);
+            return args[i + 1];
+        }
+
+        static int intValue(String[] args, int i, int min, int max) {
+            String value = value(args, i);
+            try {
+                int number = Integer.parseInt(value);
+                if (number >= min && number <= max) return number;
+            } catch (NumberFormatException ignored) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value
+                    + " (expected a whole number from " + min + " to " + max + ")");
+        }
+
+        // A positive number of seconds, returned in milliseconds
+        static long millisValue(String[] args, int i) {
+            String value = value(args, i);
+            try {
+                double seconds = Double.parseDouble(value);
+                if (seconds > 0 && seconds <= Long.MAX_VALUE / 1000) return Math.max(1, (long) (seconds * 1000));
+            } catch (NumberFormatException ignored) {
+                // Reported below
+            }
+            throw new IllegalArgumentException("Invalid value for " + args[i] + ": " + value + " (expected a positive number of seconds)");
+        }
+
+        private static int lex(String source, boolean json) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8), 1 << 16);
+            try {
+                TokenExporter.write(source, out, json, percent -> { });
+                out.flush();
+                return 0;
+            } catch (ParseException e) {
+                try {
+                    out.flush();
+                } catch (IOException ignored) {
+                    // Reported below either way
+                }
+                System.err.println("Lexical error: " + e.getMessage());
+                return 1;
+            } catch (IOException e) {
+                System.err.println(e.getMessage());
+                return 2;
+            }
+        }
+
+        static final String USAGE = "Usage: java JavaGUICompilerapp1 [command]\n"
+                + "  (no command)                                  start the IDE\n"
+                + "  --compile <Source.java>\n"
+                + "  --run <Source.java> [--input FILE] [--timeout SECONDS]\n"
+                + "  --lex <Source.java> [--json]\n"
+                + "  --batch <Source.java> <casesDir> [--jobs N] [--timeout SECONDS]\n"
+                + "  --serve [--port N] [--jobs N]                 JSON API on localhost";
+    }
+
+    // Local JSON API over com.sun.net.httpserver, for driving the toolchain from scripts and test farms.
+    //   POST /compile  {"source": "...", "className": optional}
+    //   POST /run      the same plus "stdin" and "timeoutMillis", both optional; the wall-clock limit
+    //                  is timeoutMillis (or server.runSeconds, default 10) up to server.maxRunSeconds (60)
+    //   POST /lex      {"source": "..."}; the tokens are streamed back as they are lexed
+    //   GET  /health, GET /metrics
+    // Only the loopback interface is bound, and since any program on the machine, or a web page in its
+    // browser, can reach that, every request except /health must carry the bearer token printed at
+    // startup (or taken from JGC_API_TOKEN). Requests naming another host (DNS rebinding) or coming
+    // from a foreign browser origin are refused, and POST bodies must be declared as JSON, which a
+    // cross-origin page cannot send without a preflight. Each exchange runs on a virtual thread where the JDK has
+    // them (21+), otherwise on a cached pool. At most --jobs compiles and --jobs runs go at once;
+    // further requests wait for a turn, which costs a virtual thread nothing.
+    private static class ApiServer {
+        private static final int BACKLOG = 1024;
+
+        private final Toolchain toolchain;
+        private final Semaphore compiles;
+        private final Semaphore runs;
+        private final byte[] token;
+        private final Set<String> hosts = new HashSet<>(); // Accepted Host headers, in lower case
+        private final Set<String> origins = new HashSet<>();
+        private final int maxBodyBytes = Integer.getInteger("server.maxBodyKb", 16 * 1024) << 10;
+        private final int maxOutputBytes = Integer.getInteger("server.maxOutputKb", 1024) << 10;
+        // Every run ends, so a program that sleeps or waits for input cannot hold a permit and a JVM for good
+        private final long maxRunMillis = Math.max(1, Long.getLong("server.maxRunSeconds", 60)) * 1000;
+        private final long defaultRunMillis = Math.min(Math.max(1, Long.getLong("server.runSeconds", 10)) * 1000, maxRunMillis);
+
+        private ApiServer(Toolchain toolchain, int jobs, int port, String token) {
+            this.toolchain = toolchain;
+            this.compiles = new Semaphore(jobs, true);
+            this.runs = new Semaphore(jobs, true);
+            this.token = token.getBytes(StandardCharsets.UTF_8);
+            for (String host : new String[] {"127.0.0.1", "localhost", "[::1]"}) {
+                hosts.add(host + ":" + port);
+                origins.add("http://" + host + ":" + port);
+            }
+        }
+
+        // JGC_API_TOKEN lets scripts fix the token in advance; otherwise a fresh one for each start
+        private static String newToken() {
+            String fixed = System.getenv("JGC_API_TOKEN");
+            if (fixed != null && !fixed.isEmpty()) return fixed;
+            byte[] random = new byte[32];
+            new java.security.SecureRandom().nextBytes(random);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(random);
+        }
+
+        // Returns 0 once the server is listening (it keeps the JVM alive), or 2 if it could not start
+        static int serve(String[] args) {
+            int port = 8080;
+            int jobs = Runtime.getRuntime().availableProcessors();
+            try {
+                for (int i = 1; i < args.length; i++) {
+                    if (args[i].equals("--port")) port = CommandLine.intValue(args, i++, 0, 65535);
+                    else if (args[i].equals("--jobs")) jobs = CommandLine.intValue(args, i++, 1, 1024);
+                    else throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage() + "\n" + CommandLine.USAGE);
+                return 2;
+            }
+            Toolchain toolchain = Toolchain.create(jobs, RunLimits.fromProperties());
+            if (toolchain == null) return 2;
+            com.sun.net.httpserver.HttpServer server;
+            try {
+                server = com.sun.net.httpserver.HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), BACKLOG);
+            } catch (IOException e) {
+                System.err.println("Cannot listen on port " + port + ": " + e.getMessage());
+                toolchain.shutdown();
+                return 2;
+            }
+            String token = newToken();
+            ApiServer api = new ApiServer(toolchain, jobs, server.getAddress().getPort(), token);
+            server.createContext("/", api::handle);
+            ExecutorService executor = newExecutor();
+            server.setExecutor(executor);
+            server.start();
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.stop(0);
+                executor.shutdownNow();
+                toolchain.shutdown();
+            }));
+            System.err.println("Listening on http://" + server.getAddress().getHostString() + ":" + server.getAddress().getPort()
+                    + "/ with " + jobs + " jobs" + (executor.getClass().getName().contains("ThreadPerTask") ? " on virtual threads" : ""));
+            System.err.println("Send every request with the header: Authorization: Bearer " + token);
+            return 0;
+        }
+
+        // Executors.newVirtualThreadPerTaskExecutor on JDK 21+, found reflectively so older JDKs still run
+        private static ExecutorService newExecutor() {
+            try {
+                return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+            } catch (ReflectiveOperationException e) {
+                return Executors.newCachedThreadPool(r -> {
+                    Thread thread = new Thread(r, "api-worker");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+            }
+        }
+
+        private void handle(com.sun.net.httpserver.HttpExchange exchange) throws IOException {
+            try {
+                String path = exchange.getRequestURI().getPath();
+                boolean post = exchange.getRequestMethod().equals("POST");
+                checkCaller(exchange, !path.equals("/health"));
+                switch (path) {
+                    case "/health":
+                        respond(exchange, 200, "{\"status\": \"ok\"}\n");
+                        break;
+                    case "/metrics":
+                        respond(exchange, 200, PhaseMetrics.INSTANCE.toJson());
+                        break;
+                    case "/compile":
+                    case "/run":
+                    case "/lex":
+                        if (!post) throw new ApiException(405, "use POST");
+                        String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+                        if (contentType == null || !contentType.split(";", 2)[0].trim().equalsIgnoreCase("application/json")) {
+                            throw new ApiException(415, "the request body must be sent as Content-Type: application/json");
+                        }
+                        Map<?, ?> request = readRequest(exchange);
+                        if (path.equals("/lex")) lex(exchange, request);
+                        else respond(exchange, 200, compileAndRun(request, path.equals("/run")));
+                        break;
+                    default:
+                        throw new ApiException(404, "no such endpoint: " + path);
+                }
+            } catch (ApiException e) {
+                respond(exchange, e.status, error(e.getMessage()));
+            } catch (InterruptedException e) {
+                respond(exchange, 503, error("server is shutting down"));
+            } catch (RuntimeException e) {
+                respond(exchange, 500, error(e.toString()));
+            } finally {
+                exchange.close();
+            }
+        }
+
+        // Refuses requests addressed to another host name, sent by a page from another origin, or,
+        // when authenticate is set, without the token
+        private void checkCaller(com.sun.net.httpserver.HttpExchange exchange, boolean authenticate) throws ApiException {
+            com.sun.net.httpserver.Headers headers = exchange.getRequestHeaders();
+            String host = headers.getFirst("Host");
+            if (host == null || !hosts.contains(host.toLowerCase(Locale.ROOT))) {
+                throw new ApiException(403, "requests must be addressed to 127.0.0.1 or localhost on this port");
+            }
+            String origin = headers.getFirst("Origin");
+            if (origin != null && !origins.contains(origin.toLowerCase(Locale.ROOT))) {
+                throw new ApiException(403, "cross-origin requests are not accepted");
+            }
+            if (!authenticate) return;
+            String authorization = headers.getFirst("Authorization");
+            byte[] presented = authorization != null && authorization.regionMatches(true, 0, "Bearer ", 0, 7)
+                    ? authorization.substring(7).trim().getBytes(StandardCharsets.UTF_8) : new byte[0];
+            if (!MessageDigest.isEqual(presented, token)) {
+                exchange.getResponseHeaders().set("WWW-Authenticate", "Bearer");
+                throw new ApiException(401, "missing or wrong bearer token; it is printed when the server starts");
+            }
+        }
+
+        private Map<?, ?> readRequest(com.sun.net.httpserver.HttpExchange exchange) throws IOException, ApiException {
+            ByteArrayOutputStream body = new ByteArrayOutputStream();
+            byte[] buffer = new byte[8192];
+            InputStream in = exchange.getRequestBody();
+            int n;
+            while ((n = in.read(buffer)) > 0) {
+                body.write(buffer, 0, n);
+                if (body.size() > maxBodyBytes) throw new ApiException(413, "request body over " + (maxBodyBytes >> 10) + " KB");
+            }
+            Object request;
+            try {
+                request = Json.parse(new String(body.toByteArray(), StandardCharsets.UTF_8));
+            } catch (ParseException e) {
+                throw new ApiException(400, "invalid JSON: " + e.getMessage());
+            }
+            if (!(request instanceof Map)) throw new ApiException(400, "the request must be a JSON object");
+            return (Map<?, ?>) request;
+        }
+
+        private static String string(Map<?, ?> request, String name, boolean required) throws ApiException {
+            Object value = request.get(name);
+            if (value == null && !required) return null;
+            if (!(value instanceof String)) throw new ApiException(400, "\"" + name + "\" must be a string");
+            return (String) value;
+        }
+
+        private String compileAndRun(Map<?, ?> request, boolean run) throws ApiException, InterruptedException {
+            String source = string(request, "source", true);
+            String className = string(request, "className", false);
+            if (className == null) className = qualifiedClassName(source, null);
+            CompilerService.Result result;
+            compiles.acquire();
+            try {
+                result = toolchain.compile(className, source);
+            } finally {
+                compiles.release();
+            }
+
+            StringBuilder json = new StringBuilder("{\"className\": ");
+            Json.appendString(json, className);
+            json.append(", \"success\": ").append(result.isSuccess());
+            json.append(", \"cached\": ").append(result.isCached());
+            json.append(", \"compileMillis\": ").append(result.getMillis());
+            json.append(", \"diagnostics\": [");
+            boolean first = true;
+            for (Diagnostic<? extends JavaFileObject> d : result.getDiagnostics()) {
+                json.append(first ? "\n  " : ",\n  ");
+                first = false;
+                json.append("{\"kind\": \"").append(d.getKind()).append('"');
+                json.append(", \"line\": ").append(d.getLineNumber());
+                json.append(", \"column\": ").append(d.getColumnNumber());
+                json.append(", \"message\": ");
+                Json.appendString(json, d.getMessage(Locale.ROOT));
+                json.append('}');
+            }
+            json.append(first ? "]" : "\n]");
+            if (run && result.isSuccess()) json.append(",\n\"run\": ").append(run(Toolchain.launchOf(className, result), request));
+            return json.append("}\n").toString();
+        }
+
+        private String run(Launch launch, Map<?, ?> request) throws ApiException, InterruptedException {
+            String stdin = string(request, "stdin", false);
+            Object timeout = request.get("timeoutMillis");
+            long wallMillis = defaultRunMillis;
+            if (timeout instanceof Number) {
+                double millis = ((Number) timeout).doubleValue();
+                if (!(millis >= 1)) throw new ApiException(400, "\"timeoutMillis\" must be at least 1");
+                wallMillis = (long) Math.min(millis, maxRunMillis);
+            } else if (timeout != null) {
+                throw new ApiException(400, "\"timeoutMillis\" must be a number");
+            }
+            RunLimits limits = toolchain.limits.withWallMillis(wallMillis);
+
+            CappedOutput stdout = new CappedOutput(maxOutputBytes);
+            CappedOutput stderr = new CappedOutput(maxOutputBytes);
+            Toolchain.Execution execution;
+            runs.acquire();
+            try {
+                execution = toolchain.run(launch, limits,
+                        new ByteArrayInputStream(stdin == null ? new byte[0] : stdin.getBytes(Charset.defaultCharset())), stdout, stderr);
+            } catch (IOException e) {
+                throw new ApiException(500, "could not run the program: " + e.getMessage());
+            } finally {
+                runs.release();
+            }
+            StringBuilder json = new StringBuilder("{\"exitCode\": ").append(execution.exitCode);
+            json.append(", \"millis\": ").append(execution.millis);
+            json.append(", \"peakHeap\": ").append(execution.peakHeap);
+            json.append(", \"killedBy\": ");
+            if (execution.killedBy == null) json.append("null");
+            else Json.appendString(json, execution.killedBy);
+            json.append(",\n  \"stdout\": ");
+            Json.appendString(json, stdout.text());
+            json.append(", \"stdoutTruncated\": ").append(stdout.truncated());
+            json.append(",\n  \"stderr\": ");
+            Json.appendString(json, stderr.text());
+            json.append(", \"stderrTruncated\": ").append(stderr.truncated());
+            return json.append('}').toString();
+        }
+
+        // Streams {"tokens": [...], "error": null or "message"} while lexing
+        private void lex(com.sun.net.httpserver.HttpExchange exchange, Map<?, ?> request) throws IOException, ApiException {
+            String source = string(request, "source", true);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(200, 0); // Chunked
+            Writer out = new BufferedWriter(new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8), 1 << 16);
+            out.write("{\"tokens\": ");
+            String error = null;
+            try {
+                TokenExporter.write(source, out, true, percent -> { });
+            } catch (ParseException e) {
+                error = e.getMessage();
+            }
+            StringBuilder tail = new StringBuilder(", \"error\": ");
+            if (error == null) tail.append("null");
+            else Json.appendString(tail, error);
+            out.write(tail.append("}\n").toString());
+            out.flush();
+        }
+
+        private static void respond(com.sun.net.httpserver.HttpExchange exchange, int status, String json) throws IOException {
+            byte[] body = json.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+            exchange.sendResponseHeaders(status, body.length);
+            exchange.getResponseBody().write(body);
+        }
+
+        private static String error(String message) {
+            StringBuilder json = new StringBuilder("{\"error\": ");
+            Json.appendString(json, message);
+            return json.append("}\n").toString();
+        }
+
+        @SuppressWarnings("serial")
+        private static class ApiException extends Exception {
+            final int status;
+
+            ApiException(int status, String message) {
+                super(message);
+                this.status = status;
+            }
+        }
+
+        // Keeps the first limit bytes written and counts the rest
+        private static class CappedOutput extends OutputStream {
+            private final ByteArrayOutputStream kept = new ByteArrayOutputStream();
+            private final int limit;
+            private long total;
+
+            CappedOutput(int limit) {
+                this.limit = limit;
+            }
+
+            @Override
+            public synchronized void write(int b) {
+                if (total++ < limit) kept.write(b);
+            }
+
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                int n = (int) Math.max(0, Math.min(len, limit - total));
+                kept.write(b, off, n);
+                total += len;
+            }
+
+            synchronized String text() {
+                return new String(kept.toByteArray(), Charset.defaultCharset());
+            }
+
+            synchronized boolean truncated() {
+                return total > limit;
+            }
+        }
+    }
+
+    // Just enough JSON for the API server: parse reads a document into Maps, Lists, Strings,
+    // Doubles, Booleans and nulls, and appendString writes a string literal
+    private static class Json {
+        private final String text;
+        private int pos;
+
+        private Json(String text) {
+            this.text = text;
+        }
+
+        static Object parse(String text) throws ParseException {
+            Json parser = new Json(text);
+            Object value = parser.value();
+            parser.skipWhitespace();
+            if (parser.pos < text.length()) throw parser.error("unexpected text after the value");
+            return value;
+        }
+
+        static void appendString(StringBuilder out, CharSequence value) {
+            out.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '"':
+                        out.append("\\\"");
+                        break;
+                    case '\\':
+                        out.append("\\\\");
+                        break;
+                    case '\n':
+                        out.append("\\n");
+                        break;
+                    case '\r':
+                        out.append("\\r");
+                        break;
+                    case '\t':
+                        out.append("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) out.append("\\u00").append(Character.forDigit(c >> 4, 16)).append(Character.forDigit(c & 15, 16));
+                        else out.append(c);
+                }
+            }
+            out.append('"');
+        }
+
+        private Object value() throws ParseException {
+            skipWhitespace();
+            if (pos >= text.length()) throw error("unexpected end");
+            char c = text.charAt(pos);
+            switch (c) {
+                case '{':
+                    return object();
+                case '[':
+                    return array();
+                case '"':
+                    return string();
+                case 't':
+                    return literal("true", Boolean.TRUE);
+                case 'f':
+                    return literal("false", Boolean.FALSE);
+                case 'n':
+                    return literal("null", null);
+                default:
+                    if (c == '-' || (c >= '0' && c <= '9')) return number();
+                    throw error("unexpected '" + c + "'");
+            }
+        }
+
+        private Map<String, Object> object() throws ParseException {
+            Map<String, Object> object = new LinkedHashMap<>();
+            pos++;
+            skipWhitespace();
+            if (peek() == '}') {
+                pos++;
+                return object;
+            }
+            while (true) {
+                skipWhitespace();
+                if (peek() != '"') throw error("expected a name");
+                String name = string();
+                skipWhitespace();
+                expect(':');
+                object.put(name, value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect('}');
+                    return object;
+                }
+            }
+        }
+
+        private List<Object> array() throws ParseException {
+            List<Object> array = new ArrayList<>();
+            pos++;
+            skipWhitespace();
+            if (peek() == ']') {
+                pos++;
+                return array;
+            }
+            while (true) {
+                array.add(value());
+                skipWhitespace();
+                if (peek() == ',') {
+                    pos++;
+                } else {
+                    expect(']');
+                    return array;
+                }
+            }
+        }
+
+        private String string() throws ParseException {
+            StringBuilder value = new StringBuilder();
+            pos++;
+            while (true) {
+                if (pos >= text.length()) throw error("unterminated string");
+                char c = text.charAt(pos++);
+                if (c == '"') return value.toString();
+                if (c != '\\') {
+                    value.append(c);
+                    continue;
+                }
+                if (pos >= text.length()) throw error("unterminated string");
+                char escape = text.charAt(pos++);
+                switch (escape) {
+                    case 'b':
+                        value.append('\b');
+                        break;
+                    case 'f':
+                        value.append('\f');
+                        break;
+                    case 'n':
+                        value.append('\n');
+                        break;
+                    case 'r':
+                        value.append('\r');
+                        break;
+                    case 't':
+                        value.append('\t');
+                        break;
+                    case 'u':
+                        if (pos + 4 > text.length()) throw error("bad \\u escape");
+                        try {
+                            value.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+                        } catch (NumberFormatException e) {
+                            throw error("bad \\u escape");
+                        }
+                        pos += 4;
+                        break;
+                    default:
+                        value.append(escape); // \" \\ and \/
+                }
+            }
+        }
+
+        private Double number() throws ParseException {
+            int start = pos;
+            while (pos < text.length() && "+-0123456789.eE".indexOf(text.charAt(pos)) >= 0) pos++;
+            try {
+                return Double.valueOf(text.substring(start, pos));
+            } catch (NumberFormatException e) {
+                throw error("bad number");
+            }
+        }
+
+        private Object literal(String word, Object value) throws ParseException {
+            if (!text.startsWith(word, pos)) throw error("unexpected '" + text.charAt(pos) + "'");
+            pos += word.length();
+            return value;
+        }
+
+        private void expect(char c) throws ParseException {
+            if (peek() != c) throw error("expected '" + c + "'");
+            pos++;
+        }
+
+        private char peek() {
+            return pos < text.length() ? text.charAt(pos) : '\0';
+        }
+
+        private void skipWhitespace() {
+            while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) pos++;
+        }
+
+        private ParseException error(String message) {
+            return new ParseException(message + " at offset " + pos, pos);
+        }
+    }
+
+    // Headless grading mode: java JavaGUICompilerapp1 --batch Main.java casesDir [--jobs N] [--timeout S]
+    // Compiles the program once, then runs it for every casesDir/NAME.in in parallel, each in its own
+    // pooled JVM with that file as stdin, and compares stdout with NAME.out (or NAME.expected) as it
+    // streams. Prints one report line per case, in name order, and exits with 0 when every case passed.
+    private static class BatchRunner {
+        private final Launch launch;
+        private final Toolchain toolchain;
+        private final RunLimits limits;
+
+        private BatchRunner(Launch launch, Toolchain toolchain, RunLimits limits) {
+            this.launch = launch;
+            this.toolchain = toolchain;
+            this.limits = limits;
+        }
+
+        private static final String USAGE = "Usage: java JavaGUICompilerapp1 --batch <Source.java> <casesDir> [--jobs N] [--timeout SECONDS]";
+
+        static int run(String[] args) {
+            if (args.length < 3) {
+                System.err.println(USAGE);
+                return 2;
+            }
+            File sourceFile = new File(args[1]);
+            File casesDir = new File(args[2]);
+            int jobs = Runtime.getRuntime().availableProcessors();
+            long timeoutMillis = 10_000;
+            try {
+                for (int i = 3; i < args.length; i++) {
+                    if (args[i].equals("--jobs")) jobs = CommandLine.intValue(args, i++, 1, 1024);
+                    else if (args[i].equals("--timeout")) timeoutMillis = CommandLine.millisValue(args, i++);
+                    else throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            } catch (IllegalArgumentException e) {
+                System.err.println(e.getMessage() + "\n" + USAGE);
+                return 2;
+            }
+
+            File[] inputs = casesDir.listFiles((dir, name) -> name.endsWith(".in"));
+            if (inputs == null || inputs.length == 0) {
+                System.err.println("No .in files in " + casesDir);
+                return 2;
+            }
+            Arrays.sort(inputs);
+
+            String sourceText;
+            try {
+                sourceText = new String(Files.readAllBytes(sourceFile.toPath()), StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                System.err.println("Cannot read " + sourceFile + ": " + e.getMessage());
+                return 2;
+            }
+            RunLimits limits = RunLimits.fromProperties().withWallMillis(timeoutMillis);
+            Toolchain toolchain = Toolchain.create(Math.min(jobs, inputs.length), limits); // JVMs start while we compile
+            if (toolchain == null) return 2;
+            Launch launch = compileProgram(toolchain.compilerService,
+                    qualifiedClassName(sourceText, sourceFile.getName().replace(".java", "")), sourceFile, sourceText,
+                    System.err::print, null);
+            if (launch == null) {
+                toolchain.shutdown();
+                return 2;
+            }
+
+            BatchRunner runner = new BatchRunner(launch, toolchain, limits);
+            ExecutorService workers = Executors.newFixedThreadPool(jobs);
+            try {
+                List<Future<CaseResult>> results = new ArrayList<>();
+                for (File input : inputs) {
+                    results.add(workers.submit(() -> runner.runCase(input)));
+                }
+                System.out.printf("%-24s %-8s %10s %12s  %s%n", "CASE", "RESULT", "TIME", "PEAK HEAP", "DETAIL");
+                int passed = 0;
+                for (int i = 0; i < inputs.length; i++) {
+                    CaseResult result;
+                    try {
+                        result = results.get(i).get();
+                    } catch (ExecutionException e) {
+                        // A case that could not be run fails on its own; the rest still report
+                        String name = inputs[i].getName().substring(0, inputs[i].getName().length() - 3);
+                        result = new CaseResult(name, false, 0, -1, "error: " + e.getCause());
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return 2;
+                    }
+                    if (result.passed) passed++;
+                    System.out.printf("%-24s %-8s %7d ms %12s  %s%n", result.name, result.passed ? "PASS" : "FAIL",
+                            result.millis, formatBytes(result.peakHeap), result.detail);
+                    System.out.flush();
+                }
+                System.out.println("Passed " + passed + " of " + inputs.length + " cases.");
+                return passed == inputs.length ? 0 : 1;
+            } finally {
+                // The workers are not daemons and the pooled JVMs are separate processes
+                workers.shutdownNow();
+                toolchain.shutdown();
+            }
+        }
+
+        private CaseResult runCase(File input) {
+            String name = input.getName().substring(0, input.getName().length() - 3);
+            File expected = new File(input.getParentFile(), name + ".out");
+            if (!expected.isFile()) expected = new File(input.getParentFile(), name + ".expected");
+            long start = System.nanoTime();
+            try (InputStream in = new FileInputStream(input);
+                 InputStream expectedStream = expected.isFile() ? new BufferedInputStream(new FileInputStream(expected)) : null) {
+                OutputComparator comparator = expectedStream != null ? new OutputComparator(expectedStream) : null;
+                Toolchain.Execution execution = toolchain.run(launch, limits, in, new OutputStream() {
+                    @Override
+                    public void write(int b) throws IOException {
+                        write(new byte[] {(byte) b}, 0, 1);
+                    }
+
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if (comparator != null) comparator.accept(b, off, len);
+                    }
+                }, OutputStream.nullOutputStream());
+
+                String detail = execution.killedBy;
+                boolean passed = false;
+                if (detail != null) {
+                    detail = "killed: " + detail;
+                } else if (execution.exitCode != 0) {
+                    detail = "exit code " + execution.exitCode;
+                } else if (comparator == null) {
+                    detail = "no " + name + ".out to compare with";
+                } else {
+                    detail = comparator.finish();
+                    passed = detail == null;
+                    if (passed) detail = "";
+                }
+                return new CaseResult(name, passed, execution.millis, execution.peakHeap, detail);
+            } catch (IOException e) {
+                return new CaseResult(name, false, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), -1,
+                        "error: " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return new CaseResult(name, false, 0, -1, "interrupted");
+            }
+        }
+
+        private static class CaseResult {
+            final String name;
+            final boolean passed;
+            final long millis;
+            final long peakHeap;
+            final String detail;
+
+            CaseResult(String name, boolean passed, long millis, long peakHeap, String detail) {
+                this.name = name;
+                this.passed = passed;
+                this.millis = millis;
+                this.peakHeap = peakHeap;
+                this.detail = detail;
+            }
+        }
+    }
+
+    // Compares a program's output with an expected-output file while both are read, so neither is
+    // held in memory. Carriage returns and trailing newlines are ignored. Keeps the first
+    // difference, with the text of both lines around it.
+    private static class OutputComparator {
+        private static final int CONTEXT = 60;
+
+        private final InputStream expected;
+        private int expectedNewlines;      // Newlines read but not yet compared, so trailing ones can be dropped
+        private int expectedHeld = -1;     // Byte read after those newlines
+        private int actualNewlines;
+        private long line = 1;
+        private final ByteArrayOutputStream expectedLine = new ByteArrayOutputStream();
+        private final ByteArrayOutputStream actualLine = new ByteArrayOutputStream();
+        private String difference;
+        private boolean collectingActual; // After a difference, until the end of that actual line
+
+        OutputComparator(InputStream expected) {
+            this.expected = expected;
+        }
+
+        void accept(byte[] buffer, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                int b = buffer[i] & 0xFF;
+                if (b == '\r') continue;
+                if (difference != null) {
+                    if (collectingActual) {
+                        if (b == '\n' || actualLine.size() >= CONTEXT) collectingActual = false;
+                        else actualLine.write(b);
+                    }
+                    continue;
+                }
+                if (b == '\n') {
+                    actualNewlines++;
+                    continue;
+                }
+                for (; actualNewlines > 0 && difference == null; actualNewlines--) compare('\n');
+                if (difference == null) compare(b);
+                else if (collectingActual) actualLine.write(b);
+            }
+        }
+
+        // Null if the output matched, otherwise a description of the first difference
+        String finish() throws IOException {
+            int want = difference == null ? nextExpected() : -1;
+            if (want >= 0) {
+                if (want == '\n') {
+                    line++;
+                    expectedLine.reset();
+                } else {
+                    expectedLine.write(want);
+                }
+                difference = "output ended early at line " + line + ", expected \"" + text(expectedLine) + restOfExpectedLine() + "\"";
+            } else if (difference != null) {
+                difference += text(actualLine) + "\"";
+            }
+            return difference;
+        }
+
+        private void compare(int actual) throws IOException {
+            int want = nextExpected();
+            if (want == actual) {
+                if (actual == '\n') {
+                    line++;
+                    expectedLine.reset();
+                    actualLine.reset();
+                } else if (expectedLine.size() < CONTEXT) {
+                    expectedLine.write(actual);
+                    actualLine.write(actual);
+                }
+                return;
+            }
+            if (want < 0) {
+                if (actual == '\n') {
+                    line++;
+                    actualLine.reset();
+                } else {
+                    actualLine.write(actual);
+                }
+                difference = "unexpected output after the expected end, at line " + line + ": \"";
+                collectingActual = true;
+            } else {
+                if (want != '\n') expectedLine.write(want);
+                if (actual != '\n') actualLine.write(actual);
+                difference = "line " + line + ": expected \"" + text(expectedLine) + restOfExpectedLine() + "\" but got \"";
+                collectingActual = actual != '\n';
+            }
+        }
+
+        // Next byte of the expected file with carriage returns removed, or -1 at its end; newlines
+        // at the very end are never returned
+        private int nextExpected() throws IOException {
+            while (true) {
+                if (expectedHeld >= 0) {
+                    if (expectedNewlines > 0) {
+                        expectedNewlines--;
+                        return '\n';
+                    }
+                    int b = expectedHeld;
+                    expectedHeld = -1;
+                    return b;
+                }
+                int b = expected.read();
+                if (b < 0) return -1;
+                if (b == '\r') continue;
+                if (b == '\n') expectedNewlines++;
+                else expectedHeld = b;
+            }
+        }
+
+        private String restOfExpectedLine() throws IOException {
+            ByteArrayOutputStream rest = new ByteArrayOutputStream();
+            int b;
+            while (rest.size() + expectedLine.size() < CONTEXT && expectedNewlines == 0 && (b = nextExpected()) >= 0 && b != '\n') {
+                rest.write(b);
+            }
+            return text(rest);
+        }
+
+        private static String text(ByteArrayOutputStream bytes) {
+            return new String(bytes.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+
+    // Reads a child JVM's stderr. Lines starting with NUL are reports from ChildRunner; any other
+    // text is passed on, or dropped when passOn is null.
+    private static class ChildStatusReader extends Thread {
+        static final String PEAK_HEAP = "\0peak-heap ";
+        static final String CLASS_LOAD = "\0class-load ";
+        static final String RUN_CPU = "\0run-cpu ";
+        // Line, file name and exception, tab-separated, of the program's own frame an uncaught exception came from
+        static final String ERROR_AT = "\0error-at ";
+
+        private final InputStream in;
+        private final Consumer<String> passOn;
+        volatile long peakHeap = -1;
+        volatile long classLoadNanos = -1; // Loading and initialising the main class
+        volatile long runCpuNanos = -1;    // CPU time of the JVM from the request to its exit
+        volatile String errorFile;
+        volatile String errorMessage;
+        volatile int errorLine = -1;       // Written last, so the other two are set when it is
+
+        ChildStatusReader(InputStream in, Consumer<String> passOn) {
+            super("program-stderr");
+            this.in = in;
+            this.passOn = passOn;
+            setDaemon(true);
+            start();
+        }
+
+        @Override
+        public void run() {
+            try (BufferedReader reader = new BufferedReader(new InputStreamReader(in, Charset.defaultCharset()))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.startsWith(PEAK_HEAP)) {
+                        peakHeap = Long.parseLong(line.substring(PEAK_HEAP.length()).trim());
+                    } else if (line.startsWith(CLASS_LOAD)) {
+                        classLoadNanos = Long.parseLong(line.substring(CLASS_LOAD.length()).trim());
+                    } else if (line.startsWith(RUN_CPU)) {
+                        runCpuNanos = Long.parseLong(line.substring(RUN_CPU.length()).trim());
+                    } else if (line.startsWith(ERROR_AT)) {
+                        int tab = line.indexOf('\t');
+                        int secondTab = line.indexOf('\t', tab + 1);
+                        if (secondTab < 0) continue;
+                        errorFile = line.substring(tab + 1, secondTab);
+                        errorMessage = line.substring(secondTab + 1);
+                        errorLine = Integer.parseInt(line.substring(ERROR_AT.length(), tab));
+                    } else if (passOn != null) {
+                        passOn.accept(line + "\n");
+                    }
+                }
+            } catch (IOException | NumberFormatException ignored) {
+                // The child was killed mid-line
+            }
+        }
+    }
+
+    private static String formatBytes(long bytes) {
+        if (bytes < 0) return "-";
+        return String.format("%.1f MB", bytes / (1024.0 * 1024.0));
+    }
+
+    private static String formatSeconds(long millis) {
+        return millis % 1000 == 0 ? millis / 1000 + " s" : String.format("%.1f s", millis / 1000.0);
+    }
+
+    // Collects program output in a lock-free ring buffer and drains it into the console from a
+    // Swing timer, so output costs one document update per frame rather than one EDT runnable
+    // per write. There is a single producer: the PrintStream in front of the sink serialises
+    // its writers. The producer only waits when the ring is full.
+    private static class ConsoleSink extends OutputStream {
+        private static final int CAPACITY = 1 << 20; // Power of two
+        private static final int FLUSH_INTERVAL_MILLIS = 16;
+        private static final int MAX_BYTES_PER_FLUSH = 256 * 1024;
+
+        private final byte[] ring = new byte[CAPACITY];
+        private final AtomicLong readPosition = new AtomicLong();
+        private final AtomicLong writePosition = new AtomicLong();
+        private final Consumer<String> target;
+        private final javax.swing.Timer flushTimer;
+        private volatile boolean closed;
+
+        // Consumer side, only used on the EDT
+        private final CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        private final ByteBuffer pendingBytes = ByteBuffer.allocate(MAX_BYTES_PER_FLUSH);
+        private final CharBuffer decodedChars = CharBuffer.allocate(MAX_BYTES_PER_FLUSH);
+
+        // target receives decoded text on the EDT
+        public ConsoleSink(Consumer<String> target) {
+            this.target = target;
+            flushTimer = new javax.swing.Timer(FLUSH_INTERVAL_MILLIS, e -> drain(false));
+            SwingUtilities.invokeLater(flushTimer::start);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            long write = awaitSpace();
+            ring[(int) write & (CAPACITY - 1)] = (byte) b;
+            writePosition.lazySet(write + 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            while (len > 0) {
+                long write = awaitSpace();
+                int count = Math.min(len, CAPACITY - (int) (write - readPosition.get()));
+                int index = (int) write & (CAPACITY - 1);
+                int first = Math.min(count, CAPACITY - index);
+                System.arraycopy(b, off, ring, index, first);
+                System.arraycopy(b, off + first, ring, 0, count - first);
+                writePosition.lazySet(write + count); // Publishes the bytes to the consumer
+                off += count;
+                len -= count;
+            }
+        }
+
+        // Returns the write position once at least one byte is free
+        private long awaitSpace() throws IOException {
+            while (true) {
+                if (closed) throw new IOException("Console output closed");
+                long write = writePosition.get();
+                if (write - readPosition.get() < CAPACITY) return write;
+                LockSupport.parkNanos(50_000L);
+            }
+        }
+
+        // Stops accepting output and drains what is left, in order with later invokeLater calls
+        @Override
+        public void close() {
+            if (closed) return;
+            closed = true;
+            SwingUtilities.invokeLater(() -> {
+                flushTimer.stop();
+                drain(true);
+            });
+        }
+
+        private void drain(boolean endOfInput) {
+            while (true) {
+                long read = readPosition.get();
+                int count = (int) Math.min(writePosition.get() - read, pendingBytes.remaining());
+                int index = (int) read & (CAPACITY - 1);
+                int first = Math.min(count, CAPACITY - index);
+                pendingBytes.put(ring, index, first);
+                pendingBytes.put(ring, 0, count - first);
+                readPosition.lazySet(read + count); // Hands the space back to the producer
+
+                boolean more = writePosition.get() > read + count;
+                pendingBytes.flip();
+                decoder.decode(pendingBytes, decodedChars, endOfInput && !more);
+                if (endOfInput && !more) decoder.flush(decodedChars);
+                pendingBytes.compact(); // Keeps a partial multi-byte sequence for the next round
+                decodedChars.flip();
+                if (decodedChars.hasRemaining()) {
+                    PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.CONSOLE_FLUSH);
+                    target.accept(decodedChars.toString());
+                    timer.stop(null);
+                }
+                decodedChars.clear();
+                // A timer tick handles one chunk so a flood of output cannot monopolise the EDT
+                if (!endOfInput || !more) return;
+            }
+        }
+    }
+
+    // Keeps the console document under a line and character cap. The oldest text is evicted in
+    // chunks into a memory-mapped scrollback file, and paged back in when the user scrolls to the top.
+    // Limits come from the console.maxLines and console.maxChars system properties.
+    private static class BoundedConsole {
+        private static final int MAX_LINES = Integer.getInteger("console.maxLines", 20_000);
+        private static final int MAX_CHARS = Integer.getInteger("console.maxChars", 2_000_000);
+        private static final int PAGE_IN_CHARS = 64 * 1024;
+
+        private final JTextArea area;
+        private final JScrollPane scrollPane;
+        private final Segment segment = new Segment();
+        private ScrollbackFile scrollback;
+        private boolean scrollbackFailed;
+        private String scrollbackNotice; // First line of the console once the scrollback file has failed
+        private long windowStart;   // Scrollback offset of the first character in the document
+        private boolean pagingIn;
+
+        public BoundedConsole(JTextArea area, JScrollPane scrollPane) {
+            this.area = area;
+            this.scrollPane = scrollPane;
+            JScrollBar scrollBar = scrollPane.getVerticalScrollBar();
+            scrollBar.addAdjustmentListener(e -> {
+                boolean scrollable = scrollBar.getMaximum() - scrollBar.getVisibleAmount() > scrollBar.getMinimum();
+                if (!e.getValueIsAdjusting() && e.getValue() == scrollBar.getMinimum() && scrollable
+                        && windowStart > 0 && !pagingIn) {
+                    pagingIn = true;
+                    SwingUtilities.invokeLater(this::pageIn);
+                }
+            });
+        }
+
+        // Appends on the EDT, evicting old text when a cap is exceeded
+        public void append(String text) {
+            area.append(text);
+            Document document = area.getDocument();
+            if (document.getLength() > MAX_CHARS || area.getLineCount() > MAX_LINES) {
+                evict();
+            }
+        }
+
+        public void clear() {
+            area.setText("");
+            windowStart = 0;
+            if (scrollback != null) scrollback.clear();
+        }
+
+        // Releases the scrollback file; the console must not be used afterwards
+        public void dispose() {
+            if (scrollback != null) scrollback.close();
+            scrollback = null;
+            scrollbackFailed = true;
+        }
+
+        // Drops the oldest lines until both caps are back at three quarters
+        private void evict() {
+            Document document = area.getDocument();
+            Element root = document.getDefaultRootElement();
+            int lines = root.getElementCount();
+            int firstKeptLine = Math.max(lines - MAX_LINES * 3 / 4, 0);
+            int charLimitLine = root.getElementIndex(Math.max(document.getLength() - MAX_CHARS * 3 / 4, 0));
+            firstKeptLine = Math.min(Math.max(firstKeptLine, charLimitLine + 1), lines - 1);
+            int count = root.getElement(firstKeptLine).getStartOffset();
+            if (count <= 0) return;
+            try {
+                spill(document, count);
+                document.remove(0, count);
+                windowStart += count;
+                // Evictions always start at the top, so the notice goes with them and is put back
+                if (scrollbackNotice != null) document.insertString(0, scrollbackNotice, null);
+            } catch (BadLocationException e) {
+                // Offsets come from the document itself
+            }
+        }
+
+        // Saves the first count characters unless an earlier page-in already put them in the file
+        private void spill(Document document, int count) throws BadLocationException {
+            if (scrollbackFailed) return;
+            try {
+                if (scrollback == null) scrollback = new ScrollbackFile();
+                long alreadySaved = Math.max(0, Math.min(scrollback.length() - windowStart, count));
+                document.getText((int) alreadySaved, count - (int) alreadySaved, segment);
+                scrollback.append(segment.array, segment.offset, segment.count);
+            } catch (IOException e) {
+                // Without a scrollback file the evicted text is dropped, and with it whatever the
+                // file held, since the text now in the document no longer follows on from it
+                scrollbackFailed = true;
+                if (scrollback != null) scrollback.close();
+                scrollback = null;
+                scrollbackNotice = "[scrollback disabled: " + e.getClass().getSimpleName() + ": " + e.getMessage()
+                        + "; older output is discarded]\n";
+            }
+        }
+
+        // Inserts the preceding chunk of scrollback at the top and keeps the view on the same text
+        @SuppressWarnings("deprecation")
+        private void pageIn() {
+            if (windowStart == 0 || scrollback == null) {
+                pagingIn = false;
+                return;
+            }
+            long from = Math.max(0, windowStart - PAGE_IN_CHARS);
+            String chunk = scrollback.read(from, (int) (windowStart - from));
+            if (from > 0) {
+                // Start on a line boundary
+                int newline = chunk.indexOf('\n');
+                if (newline >= 0) chunk = chunk.substring(newline + 1);
+            }
+            if (chunk.isEmpty()) {
+                pagingIn = false;
+                return;
+            }
+            final int insertedLength = chunk.length();
+            try {
+                area.getDocument().insertString(0, chunk, null);
+                windowStart -= insertedLength;
+            } catch (BadLocationException e) {
+                // Inserting at offset 0 is always valid
+            }
+            // Scroll once the view has been laid out for the new text
+            SwingUtilities.invokeLater(() -> {
+                try {
+                    Rectangle previousTop = area.modelToView(Math.min(insertedLength, area.getDocument().getLength()));
+                    if (previousTop != null) scrollPane.getVerticalScrollBar().setValue(previousTop.y);
+                } catch (BadLocationException e) {
+                    // Clamped to the document length above
+                } finally {
+                    pagingIn = false;
+                }
+            });
+        }
+    }
+
+    // Append-only UTF-16 store for evicted console text. It lives in a temporary file that is mapped
+    // into memory in fixed-size segments, so scrollback does not occupy the Java heap.
+    private static class ScrollbackFile {
+        private static final int SEGMENT_CHARS = 8 << 20; // 16 MB per mapping
+
+        private final FileChannel channel;
+        private final List<CharBuffer> segments = new ArrayList<>();
+        private long length;
+
+        public ScrollbackFile() throws IOException {
+            Path file = Files.createTempFile("console-scrollback", ".txt");
+            channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+            file.toFile().deleteOnExit();
+        }
+
+        public long length() {
+            return length;
+        }
+
+        public void append(char[] chars, int offset, int count) throws IOException {
+            while (count > 0) {
+                int segmentIndex = (int) (length / SEGMENT_CHARS);
+                int position = (int) (length % SEGMENT_CHARS);
+                if (segmentIndex == segments.size()) {
+                    segments.add(channel.map(FileChannel.MapMode.READ_WRITE,
+                            (long) segmentIndex * SEGMENT_CHARS * 2, (long) SEGMENT_CHARS * 2).asCharBuffer());
+                }
+                CharBuffer target = segments.get(segmentIndex).duplicate();
+                target.position(position);
+                int n = Math.min(count, SEGMENT_CHARS - position);
+                target.put(chars, offset, n);
+                offset += n;
+                count -= n;
+                length += n;
+            }
+        }
+
+        public String read(long from, int count) {
+            StringBuilder result = new StringBuilder(count);
+            while (count > 0) {
+                CharBuffer source = segments.get((int) (from / SEGMENT_CHARS)).duplicate();
+                int position = (int) (from % SEGMENT_CHARS);
+                int n = Math.min(count, SEGMENT_CHARS - position);
+                source.position(position).limit(position + n);
+                result.append(source);
+                from += n;
+                count -= n;
+            }
+            return result.toString();
+        }
+
+        // Forgets the contents but keeps the mappings for reuse
+        public void clear() {
+            length = 0;
+        }
+
+        // Unmapping is left to the garbage collector; the file goes when the channel closes
+        public void close() {
+            segments.clear();
+            try {
+                channel.close();
+            } catch (IOException ignored) {
+                // Deleted on exit at the latest
+            }
+        }
+    }
+
+    private void showError(String message) {
+        JOptionPane.showMessageDialog(this, message, "Error", JOptionPane.ERROR_MESSAGE);
+    }
+
+    // Shows the editor's tokens in the Tokens tab. The table reads the token store the editor keeps
+    // up to date, so it opens at once whatever the file size and follows later edits.
+    private void performLexicalAnalysis() {
+        clearErrorLineHighlight();
+        errorMarkers.clear(ErrorMarkerIndex.Origin.LEX);
+
+        try {
+            TokenStream tokens = incrementalLexer.getTokens();
+            if (consoleTabs.indexOfComponent(tokenScrollPane) < 0) {
+                consoleTabs.insertTab("Tokens", null, tokenScrollPane, "Tokens of the code in the editor", 1);
+            }
+            consoleTabs.setSelectedComponent(tokenScrollPane);
+            appendToConsole("Lexical analysis completed successfully: " + tokens.size() + " tokens.\n");
+        } catch (ParseException e) {
+            consoleTabs.setSelectedIndex(0);
+            appendToConsole("Lexical Analysis Failed:\n");
+            appendToConsole(e.getMessage() + "\n");
+            // The error offset is in the current text, which the lexer keeps up with
+            int line = codeArea.getDocument().getDefaultRootElement().getElementIndex(e.getErrorOffset()) + 1;
+            errorMarkers.mark(ErrorMarkerIndex.Origin.LEX, line, true, e.getMessage());
+            highlightFirstError(ErrorMarkerIndex.Origin.LEX);
+        }
+    }
+
+    // Writes the tokens of the editor text to a CSV file, or a JSON file when the name ends in .json
+    private void exportTokens() {
+        JFileChooser chooser = new JFileChooser(currentFile != null ? currentFile.getParentFile() : null);
+        chooser.setDialogTitle("Export Tokens");
+        chooser.addChoosableFileFilter(new FileNameExtensionFilter("CSV files", "csv"));
+        chooser.addChoosableFileFilter(new FileNameExtensionFilter("JSON files", "json"));
+        if (chooser.showSaveDialog(this) != JFileChooser.APPROVE_OPTION) return;
+        File chosen = chooser.getSelectedFile();
+        String name = chosen.getName().toLowerCase();
+        File file = name.endsWith(".json") || name.endsWith(".csv") ? chosen
+                : new File(chosen.getPath() + (chooser.getFileFilter().getDescription().startsWith("JSON") ? ".json" : ".csv"));
+        boolean json = file.getName().toLowerCase().endsWith(".json");
+        CharSequence source = EditorDocument.textOf(codeArea.getDocument());
+        runFileTask("Exporting tokens", false, progress -> TokenExporter.export(source, file, json, progress),
+                count -> appendToConsole(count + " tokens exported to " + file.getAbsolutePath() + "\n"));
+    }
+
+    // Token categories reported by the Lexer
+    private enum TokenType {
+        KEYWORD, BOOLEAN_LITERAL, NULL_LITERAL, STRING_LITERAL, CHAR_LITERAL,
+        NUMBER_LITERAL, OPERATOR, PUNCTUATION, IDENTIFIER
+    }
+
+    // Simple Token class to hold lexical analysis results
+    private static class Token {
+        private final String type;
+        private final String value;
+        private final int lineNumber;
+        private final int columnNumber;
+
+        public Token(String type, String value, int lineNumber, int columnNumber) {
+            this.type = type;
+            this.value = value;
+            this.lineNumber = lineNumber;
+            this.columnNumber = columnNumber;
+        }
+
+        public String getType() {
+            return type;
+        }
+
+        public String getValue() {
+            return value;
+        }
+
+        public int getLineNumber() {
+            return lineNumber;
+        }
+
+        public int getColumnNumber() {
+            return columnNumber;
+        }
+
+        @Override
+        public String toString() {
+            return "Token{" +
+                    "type='" + type + '\'' +
+                    ", value='" + value + '\'' +
+                    ", lineNumber=" + lineNumber +
+                    ", columnNumber=" + columnNumber +
+                    '}';
+        }
+    }
+
+    // Compact token store: one entry per token in parallel int arrays, with token values
+    // exposed as views into the original source instead of copied strings.
+    // The arrays are a gap buffer so that tokens can be replaced around an edit without
+    // shifting the rest: entries after the gap keep their start offset and line number
+    // relative to a shared base, which moves with the edit.
+    private static class TokenStream {
+        private static final TokenType[] TYPES = TokenType.values();
+
+        private final CharSequence source;
+        private int[] types;
+        private int[] starts;
+        private int[] lengths;
+        private int[] lines;
+        private int[] columns;
+        private int size;
+        private int gapStart;
+        private int gapEnd;
+        private int tailStartBase;
+        private int tailLineBase;
+
+        public TokenStream(CharSequence source, int initialCapacity) {
+            this.source = source;
+            int capacity = Math.max(initialCapacity, 16);
+            types = new int[capacity];
+            starts = new int[capacity];
+            lengths = new int[capacity];
+            lines = new int[capacity];
+            columns = new int[capacity];
+            gapEnd = capacity;
+        }
+
+        // Inserts a token at the gap; for a freshly built stream this appends
+        public void add(TokenType type, int start, int length, int lineNumber, int columnNumber) {
+            if (gapStart == gapEnd) {
+                grow();
+            }
+            types[gapStart] = type.ordinal();
+            starts[gapStart] = start;
+            lengths[gapStart] = length;
+            lines[gapStart] = lineNumber;
+            columns[gapStart] = columnNumber;
+            gapStart++;
+            size++;
+        }
+
+        private void grow() {
+            int capacity = types.length;
+            int newCapacity = capacity + (capacity >> 1);
+            int tail = capacity - gapEnd;
+            types = growArray(types, newCapacity, tail);
+            starts = growArray(starts, newCapacity, tail);
+            lengths = growArray(lengths, newCapacity, tail);
+            lines = growArray(lines, newCapacity, tail);
+            columns = growArray(columns, newCapacity, tail);
+            gapEnd = newCapacity - tail;
+        }
+
+        private int[] growArray(int[] array, int newCapacity, int tail) {
+            int[] grown = Arrays.copyOf(array, newCapacity);
+            System.arraycopy(array, array.length - tail, grown, newCapacity - tail, tail);
+            return grown;
+        }
+
+        // Moves the gap so that it sits before the token at index; costs O(distance moved)
+        public void moveGap(int index) {
+            if (index < 0 || index > size) {
+                throw new IndexOutOfBoundsException("Gap index " + index + ", size " + size);
+            }
+            int gapLength = gapEnd - gapStart;
+            while (gapStart > index) {
+                int from = --gapStart;
+                int to = --gapEnd;
+                types[to] = types[from];
+                starts[to] = starts[from] - tailStartBase;
+                lengths[to] = lengths[from];
+                lines[to] = lines[from] - tailLineBase;
+                columns[to] = columns[from];
+            }
+            while (gapStart < index) {
+                int from = gapStart + gapLength;
+                int to = gapStart;
+                types[to] = types[from];
+                starts[to] = starts[from] + tailStartBase;
+                lengths[to] = lengths[from];
+                lines[to] = lines[from] + tailLineBase;
+                columns[to] = columns[from];
+                gapStart++;
+                gapEnd++;
+            }
+        }
+
+        // A stream of size tokens, all to be filled in with copyFrom
+        public static TokenStream ofSize(CharSequence source, int size) {
+            TokenStream tokens = new TokenStream(source, size);
+            tokens.gapStart = size;
+            tokens.size = size;
+            return tokens;
+        }
+
+        // Copies count tokens of other, from index on, over this stream's tokens from at on, moving
+        // their line numbers by lineDelta. Both gaps must be at the end. Separate ranges of one
+        // stream can be filled from separate threads.
+        public void copyFrom(TokenStream other, int index, int count, int at, int lineDelta) {
+            if (gapStart != size || other.gapStart != other.size) {
+                throw new IllegalStateException("Gap not at the end");
+            }
+            System.arraycopy(other.types, index, types, at, count);
+            System.arraycopy(other.starts, index, starts, at, count);
+            System.arraycopy(other.lengths, index, lengths, at, count);
+            System.arraycopy(other.columns, index, columns, at, count);
+            for (int i = 0; i < count; i++) {
+                lines[at + i] = other.lines[index + i] + lineDelta;
+            }
+        }
+
+        // Index of the first token after the gap
+        public int getGapIndex() {
+            return gapStart;
+        }
+
+        // Drops count tokens directly after the gap
+        public void removeAfterGap(int count) {
+            if (count < 0 || count > size - gapStart) {
+                throw new IndexOutOfBoundsException("Cannot remove " + count + " tokens after gap " + gapStart + ", size " + size);
+            }
+            gapEnd += count;
+            size -= count;
+        }
+
+        // Shifts the offsets and line numbers of every token after the gap in O(1)
+        public void shiftAfterGap(int offsetDelta, int lineDelta) {
+            tailStartBase += offsetDelta;
+            tailLineBase += lineDelta;
+        }
+
+        public void shiftColumn(int index, int delta) {
+            columns[physical(checkIndex(index))] += delta;
+        }
+
+        public int size() {
+            return size;
+        }
+
+        public CharSequence getSource() {
+            return source;
+        }
+
+        public TokenType getType(int index) {
+            return TYPES[types[physical(checkIndex(index))]];
+        }
+
+        public int getStart(int index) {
+            checkIndex(index);
+            return index < gapStart ? starts[index] : starts[index + gapEnd - gapStart] + tailStartBase;
+        }
+
+        public int getLength(int index) {
+            return lengths[physical(checkIndex(index))];
+        }
+
+        public int getEnd(int index) {
+            return getStart(index) + getLength(index);
+        }
+
+        public int getLineNumber(int index) {
+            checkIndex(index);
+            return index < gapStart ? lines[index] : lines[index + gapEnd - gapStart] + tailLineBase;
+        }
+
+        public int getColumnNumber(int index) {
+            return columns[physical(checkIndex(index))];
+        }
+
+        // Read-only view of the token text; call toString() to materialise a copy
+        public CharSequence getValue(int index) {
+            int start = getStart(index);
+            return CharBuffer.wrap(source, start, start + getLength(index));
+        }
+
+        public Token getToken(int index) {
+            return new Token(getType(index).name(), getValue(index).toString(), getLineNumber(index), getColumnNumber(index));
+        }
+
+        // Index of the first token starting at or after offset, or size() if there is none
+        public int indexAtOrAfter(int offset) {
+            int low = 0;
+            int high = size;
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (getStart(mid) < offset) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+
+        // List<Token> adapter; Token objects are created on access and not retained
+        public List<Token> asList() {
+            return new TokenList();
+        }
+
+        private int physical(int index) {
+            return index < gapStart ? index : index + gapEnd - gapStart;
+        }
+
+        private int checkIndex(int index) {
+            if (index < 0 || index >= size) {
+                throw new IndexOutOfBoundsException("Token index " + index + ", size " + size);
+            }
+            return index;
+        }
+
+        private class TokenList extends AbstractList<Token> implements RandomAccess {
+            @Override
+            public Token get(int index) {
+                return getToken(index);
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }
+    }
+
+    // Error and warning markers on lines of the editor's document, put there straight from compiler
+    // diagnostics, the stack frame a run failed in and lexer errors, so nothing has to scan the
+    // console text for them. Each marker is a document Position at the start of its line and
+    // follows edits; the list stays sorted by offset, so a range of lines is found by binary search.
+    private static class ErrorMarkerIndex {
+        enum Origin { COMPILE, RUN, LEX }
+
+        static final class Marker {
+            final Origin origin;
+            final Position position;
+            final boolean error; // Otherwise a warning
+            final String message;
+
+            Marker(Origin origin, Position position, boolean error, String message) {
+                this.origin = origin;
+                this.position = position;
+                this.error = error;
+                this.message = message;
+            }
+        }
+
+        private Document document;
+        private final List<Marker> markers = new ArrayList<>();
+        private Runnable onChange = () -> { };
+
+        void setOnChange(Runnable onChange) {
+            this.onChange = onChange;
+        }
+
+        // Drops every marker; they belonged to the previous document
+        void setDocument(Document document) {
+            this.document = document;
+            markers.clear();
+            onChange.run();
+        }
+
+        Document getDocument() {
+            return document;
+        }
+
+        boolean isEmpty() {
+            return markers.isEmpty();
+        }
+
+        // Marks line (counted from 1), unless the document no longer has that line or it already
+        // carries the same message, as when several runs fail in the same place
+        void mark(Origin origin, int line, boolean error, String message) {
+            Element root = document.getDefaultRootElement();
+            if (line < 1 || line > root.getElementCount()) return;
+            int offset = root.getElement(line - 1).getStartOffset();
+            int index = indexAtOrAfter(offset);
+            for (int i = index; i < markers.size() && markers.get(i).position.getOffset() == offset; i++) {
+                if (markers.get(i).origin == origin && markers.get(i).message.equals(message)) return;
+            }
+            try {
+                markers.add(index, new Marker(origin, document.createPosition(offset), error, message));
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e); // A line start is always in the document
+            }
+            onChange.run();
+        }
+
+        void clear(Origin... origins) {
+            List<Origin> cleared = Arrays.asList(origins);
+            if (markers.removeIf(marker -> cleared.contains(marker.origin))) onChange.run();
+        }
+
+        // Markers from offset from up to, not including, offset to
+        List<Marker> between(int from, int to) {
+            return markers.subList(indexAtOrAfter(from), Math.max(indexAtOrAfter(from), indexAtOrAfter(to)));
+        }
+
+        // The error of origin nearest the top of the document, or null
+        Marker firstError(Origin origin) {
+            for (Marker marker : markers) {
+                if (marker.origin == origin && marker.error) return marker;
+            }
+            return null;
+        }
+
+        private int indexAtOrAfter(int offset) {
+            int low = 0;
+            int high = markers.size();
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (markers.get(mid).position.getOffset() < offset) low = mid + 1;
+                else high = mid;
+            }
+            return low;
+        }
+    }
+
+    // Strip beside the editor showing the markers of an ErrorMarkerIndex. Only the lines inside the
+    // paint clip are looked up, so the cost of a repaint does not grow with the file or the number
+    // of markers. Hovering shows a line's messages and clicking moves the caret to it.
+    @SuppressWarnings("serial")
+    private static class ErrorGutter extends JComponent implements DocumentListener {
+        private static final int WIDTH = 14;
+        private static final Color ERROR_COLOR = new Color(220, 50, 50);
+        private static final Color WARNING_COLOR = new Color(230, 160, 30);
+
+        private final JTextComponent editor;
+        private final ErrorMarkerIndex markers;
+
+        ErrorGutter(JTextComponent editor, ErrorMarkerIndex markers) {
+            this.editor = editor;
+            this.markers = markers;
+            setOpaque(true);
+            setToolTipText(""); // Registers with the ToolTipManager; the text comes from getToolTipText(MouseEvent)
+            markers.setOnChange(this::repaint);
+            editor.addComponentListener(new ComponentAdapter() {
+                @Override
+                public void componentResized(ComponentEvent e) {
+                    revalidate(); // Keep the height of the editor, which the row header scrolls with
+                }
+            });
+            addMouseListener(new MouseAdapter() {
+                @Override
+                public void mouseClicked(MouseEvent e) {
+                    Element line = lineAt(e.getY());
+                    if (line != null && !markersOn(line).isEmpty()) {
+                        editor.setCaretPosition(line.getStartOffset());
+                        editor.requestFocusInWindow();
+                    }
+                }
+            });
+        }
+
+        @Override
+        public Dimension getPreferredSize() {
+            return new Dimension(WIDTH, editor.getHeight());
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            Rectangle clip = g.getClipBounds();
+            g.setColor(editor.getBackground());
+            g.fillRect(clip.x, clip.y, clip.width, clip.height);
+            Document document = editor.getDocument();
+            if (markers.isEmpty() || markers.getDocument() != document) return;
+
+            Element root = document.getDefaultRootElement();
+            int from = root.getElement(root.getElementIndex(editor.viewToModel2D(new Point(0, clip.y)))).getStartOffset();
+            int to = root.getElement(root.getElementIndex(editor.viewToModel2D(new Point(0, clip.y + clip.height)))).getEndOffset();
+            Graphics2D g2 = (Graphics2D) g.create();
+            g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+            int lastLine = -1;
+            for (ErrorMarkerIndex.Marker marker : markers.between(from, to)) {
+                int line = root.getElementIndex(marker.position.getOffset());
+                if (line == lastLine && !marker.error) continue; // An error outranks a warning on the same line
+                lastLine = line;
+                try {
+                    Rectangle2D row = editor.modelToView2D(root.getElement(line).getStartOffset());
+                    int size = (int) Math.min(WIDTH - 4, row.getHeight() - 4);
+                    g2.setColor(marker.error ? ERROR_COLOR : WARNING_COLOR);
+                    g2.fillOval((WIDTH - size) / 2, (int) (row.getY() + (row.getHeight() - size) / 2), size, size);
+                } catch (BadLocationException e) {
+                    // The line start came from the document itself
+                }
+            }
+            g2.dispose();
+        }
+
+        @Override
+        public String getToolTipText(MouseEvent e) {
+            Element line = lineAt(e.getY());
+            List<ErrorMarkerIndex.Marker> onLine = line != null ? markersOn(line) : Collections.<ErrorMarkerIndex.Marker>emptyList();
+            if (onLine.isEmpty()) return null;
+            StringBuilder text = new StringBuilder("<html>");
+            for (ErrorMarkerIndex.Marker marker : onLine) {
+                if (text.length() > 6) text.append("<br>");
+                for (int i = 0; i < marker.message.length(); i++) {
+                    char c = marker.message.charAt(i);
+                    if (c == '<') text.append("&lt;");
+                    else if (c == '>') text.append("&gt;");
+                    else if (c == '&') text.append("&amp;");
+                    else if (c == '\n') text.append("<br>");
+                    else text.append(c);
+                }
+            }
+            return text.append("</html>").toString();
+        }
+
+        private Element lineAt(int y) {
+            if (markers.getDocument() != editor.getDocument()) return null;
+            Element root = editor.getDocument().getDefaultRootElement();
+            return root.getElement(root.getElementIndex(editor.viewToModel2D(new Point(0, y))));
+        }
+
+        private List<ErrorMarkerIndex.Marker> markersOn(Element line) {
+            return markers.between(line.getStartOffset(), line.getEndOffset());
+        }
+
+        // Markers move with the text, so the strip is repainted after every edit while it shows any
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            if (!markers.isEmpty()) repaint();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            if (!markers.isEmpty()) repaint();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes do not move lines
+        }
+    }
+
+    // Wavy underline beneath the text a diagnostic points at. Painted per view as a layer, so only
+    // the visible part of a highlight is drawn.
+    private static class SquigglePainter extends LayeredHighlighter.LayerPainter {
+        private final Color color;
+
+        SquigglePainter(Color color) {
+            this.color = color;
+        }
+
+        @Override
+        public void paint(Graphics g, int p0, int p1, Shape bounds, JTextComponent c) {
+            // DefaultHighlighter paints layered highlights through paintLayer
+        }
+
+        @Override
+        public Shape paintLayer(Graphics g, int p0, int p1, Shape bounds, JTextComponent c, View view) {
+            Rectangle r;
+            if (p0 == view.getStartOffset() && p1 == view.getEndOffset()) {
+                r = bounds.getBounds();
+            } else {
+                try {
+                    r = view.modelToView(p0, Position.Bias.Forward, p1, Position.Bias.Backward, bounds).getBounds();
+                } catch (BadLocationException e) {
+                    return null;
+                }
+            }
+            g.setColor(color);
+            int y = r.y + r.height - 2;
+            for (int x = r.x; x < r.x + r.width; x += 4) {
+                g.drawLine(x, y, x + 2, y - 2);
+                g.drawLine(x + 2, y - 2, x + 4, y);
+            }
+            return r;
+        }
+    }
+
+    // Model of the Tokens tab over the live TokenStream of an IncrementalLexer. JTable asks only
+    // for the rows it paints, so nothing is formatted for rows that are scrolled out of view.
+    // Edits are folded into one table refresh per event-queue turn.
+    @SuppressWarnings("serial")
+    private static class TokenTableModel extends AbstractTableModel implements DocumentListener {
+        private static final String[] COLUMNS = {"Line", "Col", "Type", "Value"};
+
+        private IncrementalLexer lexer;
+        private boolean refreshQueued;
+
+        void setLexer(IncrementalLexer lexer) {
+            this.lexer = lexer;
+            fireTableDataChanged();
+        }
+
+        // The current tokens, or null while the text does not lex
+        private TokenStream tokens() {
+            try {
+                return lexer == null ? null : lexer.getTokens();
+            } catch (ParseException e) {
+                return null;
+            }
+        }
+
+        // Offset and length of the token in a row, or -1 if the row has gone
+        int getStart(int row) {
+            TokenStream tokens = tokens();
+            return tokens != null && row < tokens.size() ? tokens.getStart(row) : -1;
+        }
+
+        int getLength(int row) {
+            TokenStream tokens = tokens();
+            return tokens != null && row < tokens.size() ? tokens.getLength(row) : -1;
+        }
+
+        @Override
+        public int getRowCount() {
+            TokenStream tokens = tokens();
+            return tokens == null ? 0 : tokens.size();
+        }
+
+        @Override
+        public int getColumnCount() {
+            return COLUMNS.length;
+        }
+
+        @Override
+        public String getColumnName(int column) {
+            return COLUMNS[column];
+        }
+
+        @Override
+        public Class<?> getColumnClass(int column) {
+            return column < 2 ? Integer.class : String.class;
+        }
+
+        @Override
+        public Object getValueAt(int row, int column) {
+            TokenStream tokens = tokens();
+            // The table can ask for a row the last edit removed before its refresh has run
+            if (tokens == null || row >= tokens.size()) return null;
+            switch (column) {
+                case 0:
+                    return tokens.getLineNumber(row);
+                case 1:
+                    return tokens.getColumnNumber(row);
+                case 2:
+                    return tokens.getType(row).name();
+                default:
+                    return tokens.getValue(row).toString();
+            }
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            refreshLater();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            refreshLater();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes do not affect tokens
+        }
+
+        // Runs after every listener has seen the edit, the IncrementalLexer included
+        private void refreshLater() {
+            if (refreshQueued) return;
+            refreshQueued = true;
+            SwingUtilities.invokeLater(() -> {
+                refreshQueued = false;
+                fireTableDataChanged();
+            });
+        }
+    }
+
+    // Writes tokens to a file as the lexer produces them, so no token list is ever built.
+    // CSV has a header row and quotes every value; JSON is an array of objects.
+    private static class TokenExporter {
+        // Returns the number of tokens written; a file that could not be completed is deleted
+        static int export(CharSequence source, File file, boolean json, IntConsumer progress) throws IOException {
+            boolean complete = false;
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8), 1 << 16)) {
+                int count = write(source, out, json, progress);
+                complete = true;
+                return count;
+            } catch (ParseException e) {
+                throw new IOException(e.getMessage(), e);
+            } finally {
+                if (!complete) file.delete();
+            }
+        }
+
+        // Writes the tokens of source to out and returns how many there were. On a lexical error
+        // the JSON array is still closed, so what was written up to it remains valid.
+        static int write(CharSequence source, Writer out, boolean json, IntConsumer progress) throws IOException, ParseException {
+            EditorFiles.Progress reporter = new EditorFiles.Progress(progress, source.length(), 0, 100);
+            PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.LEX);
+            Lexer lexer = new Lexer();
+            lexer.reset(source, 0, 1, 0);
+            int count = 0;
+            out.write(json ? "[" : "line,column,type,value\r\n");
+            try {
+                while (lexer.nextToken()) {
+                    if (json) {
+                        out.write(count == 0 ? "\n  {\"line\": " : ",\n  {\"line\": ");
+                        out.write(Integer.toString(lexer.tokenLine));
+                        out.write(", \"column\": ");
+                        out.write(Integer.toString(lexer.tokenColumn));
+                        out.write(", \"type\": \"");
+                        out.write(lexer.tokenType.name());
+                        out.write("\", \"value\": \"");
+                        writeJsonString(out, source, lexer.tokenStart, lexer.tokenStart + lexer.tokenLength);
+                        out.write("\"}");
+                    } else {
+                        out.write(Integer.toString(lexer.tokenLine));
+                        out.write(',');
+                        out.write(Integer.toString(lexer.tokenColumn));
+                        out.write(',');
+                        out.write(lexer.tokenType.name());
+                        out.write(",\"");
+                        for (int i = lexer.tokenStart; i < lexer.tokenStart + lexer.tokenLength; i++) {
+                            char c = source.charAt(i);
+                            if (c == '"') out.write('"');
+                            out.write(c);
+                        }
+                        out.write("\"\r\n");
+                    }
+                    if ((++count & 4095) == 0) reporter.update(lexer.tokenStart);
+                }
+            } finally {
+                if (json) out.write(count == 0 ? "]\n" : "\n]\n");
+            }
+            timer.stop("export");
+            return count;
+        }
+
+        private static void writeJsonString(Writer out, CharSequence text, int from, int to) throws IOException {
+            for (int i = from; i < to; i++) {
+                char c = text.charAt(i);
+                switch (c) {
+                    case '"':
+                        out.write("\\\"");
+                        break;
+                    case '\\':
+                        out.write("\\\\");
+                        break;
+                    case '\n':
+                        out.write("\\n");
+                        break;
+                    case '\r':
+                        out.write("\\r");
+                        break;
+                    case '\t':
+                        out.write("\\t");
+                        break;
+                    default:
+                        if (c < 0x20) {
+                            out.write("\\u00");
+                            out.write(Character.forDigit(c >> 4, 16));
+                            out.write(Character.forDigit(c & 15, 16));
+                        } else {
+                            out.write(c);
+                        }
+                }
+            }
+        }
+    }
+
+    // CharSequence view of a Document that reads through a window of the document content
+    // instead of copying the whole text. Call invalidate() after the document changes.
+    private static class DocumentText implements CharSequence {
+        private static final int WINDOW_SIZE = 8192;
+
+        private final Document document;
+        private final Segment segment = new Segment();
+        private int windowStart;
+        private int windowEnd;
+
+        public DocumentText(Document document) {
+            this.document = document;
+            segment.setPartialReturn(true);
+        }
+
+        public void invalidate() {
+            windowStart = 0;
+            windowEnd = 0;
+        }
+
+        @Override
+        public int length() {
+            return document.getLength();
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < windowStart || index >= windowEnd) {
+                load(index);
+            }
+            return segment.array[segment.offset + index - windowStart];
+        }
+
+        private void load(int index) {
+            try {
+                document.getText(index, Math.min(WINDOW_SIZE, document.getLength() - index), segment);
+            } catch (BadLocationException e) {
+                throw new IndexOutOfBoundsException("Offset " + index + ", length " + document.getLength());
+            }
+            windowStart = index;
+            windowEnd = index + segment.count;
+            if (segment.count == 0) {
+                throw new IndexOutOfBoundsException("Offset " + index + ", length " + document.getLength());
+            }
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            try {
+                return document.getText(start, end - start);
+            } catch (BadLocationException e) {
+                throw new IndexOutOfBoundsException("Range " + start + ".." + end + ", length " + document.getLength());
+            }
+        }
+
+        @Override
+        public String toString() {
+            return subSequence(0, length()).toString();
+        }
+    }
+
+    // Keeps a TokenStream in step with a Document. An edit is re-lexed from the last token the
+    // lexer could not have looked past into the changed text, and stops as soon as a new token
+    // coincides with an old one after the edit; the remaining old tokens are shifted, not re-lexed.
+    private static class IncrementalLexer implements DocumentListener {
+        private final Document document;
+        private final DocumentText text;
+        private final Lexer lexer = new Lexer();
+        private TokenStream tokens;
+        private ParseException error;
+        private boolean fullRelexNeeded;
+
+        public IncrementalLexer(Document document) {
+            this.document = document;
+            text = new DocumentText(document);
+            PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.LEX);
+            relexAll();
+            timer.stop("full");
+        }
+
+        // Tokens for the current document content, or the error that stopped lexing
+        public TokenStream getTokens() throws ParseException {
+            if (error != null) throw error;
+            return tokens;
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            update(e.getOffset(), 0, e.getLength());
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            update(e.getOffset(), e.getLength(), 0);
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Attribute changes do not affect tokens
+        }
+
+        private void relexAll() {
+            text.invalidate();
+            try {
+                // A large file is lexed in parallel from a snapshot, which the workers can share
+                tokens = document instanceof EditorDocument && document.getLength() >= Lexer.PARALLEL_MIN_LENGTH
+                        ? lexer.lexParallel(((EditorDocument) document).snapshot(), text) : lexer.lex(text);
+                error = null;
+                // An unterminated comment can be closed by an edit anywhere after it
+                fullRelexNeeded = lexer.sawUnterminatedComment();
+            } catch (ParseException e) {
+                tokens = null;
+                error = e;
+            }
+        }
+
+        private void update(int offset, int removed, int inserted) {
+            PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.LEX);
+            relex(offset, removed, inserted);
+            timer.stop("incremental");
+        }
+
+        private void relex(int offset, int removed, int inserted) {
+            if (tokens == null || fullRelexNeeded) {
+                relexAll();
+                return;
+            }
+            text.invalidate();
+            final int delta = inserted - removed;
+            final int editEnd = offset + inserted;
+
+            int restart = tokens.indexAtOrAfter(offset) - 1;
+            while (restart > 0 && tokens.getEnd(restart - 1) + Lexer.MAX_LOOKAHEAD >= offset) {
+                restart--;
+            }
+            if (restart <= 0) {
+                restart = 0;
+                tokens.moveGap(0);
+                lexer.reset(text, 0, 1, 0);
+            } else {
+                tokens.moveGap(restart);
+                int start = tokens.getStart(restart);
+                lexer.reset(text, start, tokens.getLineNumber(restart), start - tokens.getColumnNumber(restart) + 1);
+            }
+
+            try {
+                while (lexer.nextToken()) {
+                    int start = lexer.tokenStart;
+                    // Drop old tokens the new token has moved past, stopping at one it matches
+                    while (tokens.getGapIndex() < tokens.size()) {
+                        int old = tokens.getGapIndex();
+                        int oldStart = tokens.getStart(old);
+                        int mapped = oldStart < offset ? oldStart : oldStart >= offset + removed ? oldStart + delta : -1;
+                        if (mapped > start) break;
+                        if (mapped == start && start >= editEnd && tokens.getType(old) == lexer.tokenType
+                                && tokens.getLength(old) == lexer.tokenLength) {
+                            resync(old, delta);
+                            return;
+                        }
+                        tokens.removeAfterGap(1);
                     }
+                    tokens.add(lexer.tokenType, start, lexer.tokenLength, lexer.tokenLine, lexer.tokenColumn);
+                }
+                tokens.removeAfterGap(tokens.size() - tokens.getGapIndex());
+                fullRelexNeeded = lexer.sawUnterminatedComment();
+            } catch (ParseException e) {
+                tokens = null;
+                error = e;
+            }
+        }
+
+        // The old token at index matches the lexer's current token: shift it and everything after it
+        private void resync(int index, int delta) {
+            int oldLine = tokens.getLineNumber(index);
+            int columnDelta = lexer.tokenColumn - tokens.getColumnNumber(index);
+            if (columnDelta != 0) {
+                for (int i = index; i < tokens.size() && tokens.getLineNumber(i) == oldLine; i++) {
+                    tokens.shiftColumn(i, columnDelta);
+                }
+            }
+            tokens.shiftAfterGap(delta, lexer.tokenLine - oldLine);
+            fullRelexNeeded = lexer.sawUnterminatedComment();
+        }
+    }
+
+    // Colours the editor from Lexer output. Lexing runs on a background thread against a
+    // snapshot of the text; the resulting style runs are applied on the EDT, visible lines
+    // first and then the rest of the document in small batches. Every edit cancels the
+    // pass in flight and schedules a new one.
+    private static class SyntaxHighlighter implements DocumentListener {
+        private static final int STYLE_PLAIN = 0;
+        private static final int STYLE_KEYWORD = 1;
+        private static final int STYLE_STRING = 2;
+        private static final int STYLE_NUMBER = 3;
+        private static final int STYLE_COMMENT = 4;
+
+        private static final int DEBOUNCE_MILLIS = 40;
+        private static final int RUNS_PER_BATCH = 400;
+
+        private final JTextPane editor;
+        private final ExecutorService worker = Executors.newSingleThreadExecutor(r -> {
+            Thread thread = new Thread(r, "syntax-highlighter");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        });
+        private final javax.swing.Timer debounceTimer;
+        private AttributeSet[] styles;
+        private StyledDocument document;
+        private Future<?> pass;
+        private StyleRuns applied; // Runs of the last pass that completed, or null if unknown
+        private volatile int generation; // Bumped on every edit, inside the document's write lock
+
+        public SyntaxHighlighter(JTextPane editor) {
+            this.editor = editor;
+            debounceTimer = new javax.swing.Timer(DEBOUNCE_MILLIS, e -> startPass());
+            debounceTimer.setRepeats(false);
+            styles = createStyles(false);
+        }
+
+        public void setDocument(StyledDocument newDocument) {
+            if (document != null) document.removeDocumentListener(this);
+            document = newDocument;
+            document.addDocumentListener(this);
+            applied = null;
+            schedule();
+        }
+
+        public void setDarkTheme(boolean dark) {
+            styles = createStyles(dark);
+            applied = null;
+            schedule();
+        }
+
+        private static AttributeSet[] createStyles(boolean dark) {
+            AttributeSet[] result = new AttributeSet[5];
+            result[STYLE_PLAIN] = SimpleAttributeSet.EMPTY; // Editor foreground
+            result[STYLE_KEYWORD] = style(dark ? new Color(204, 120, 50) : new Color(0, 0, 160), true, false);
+            result[STYLE_STRING] = style(dark ? new Color(106, 135, 89) : new Color(0, 128, 0), false, false);
+            result[STYLE_NUMBER] = style(dark ? new Color(104, 151, 187) : new Color(0, 0, 255), false, false);
+            result[STYLE_COMMENT] = style(dark ? new Color(128, 128, 128) : new Color(128, 128, 128), false, true);
+            return result;
+        }
+
+        private static AttributeSet style(Color color, boolean bold, boolean italic) {
+            SimpleAttributeSet attributes = new SimpleAttributeSet();
+            StyleConstants.setForeground(attributes, color);
+            if (bold) StyleConstants.setBold(attributes, true);
+            if (italic) StyleConstants.setItalic(attributes, true);
+            return attributes;
+        }
+
+        @Override
+        public void insertUpdate(DocumentEvent e) {
+            schedule();
+        }
+
+        @Override
+        public void removeUpdate(DocumentEvent e) {
+            schedule();
+        }
+
+        @Override
+        public void changedUpdate(DocumentEvent e) {
+            // Fired by our own style changes
+        }
+
+        private void schedule() {
+            generation++;
+            if (pass != null) {
+                pass.cancel(true);
+                pass = null;
+            }
+            debounceTimer.restart();
+        }
+
+        private void startPass() {
+            final StyledDocument target = document;
+            final AttributeSet[] passStyles = styles;
+            pass = worker.submit(() -> {
+                // Take the text under the document's read lock so the EDT never pays for it; an
+                // editor document hands out a snapshot, anything else a copy
+                final CharSequence[] text = new CharSequence[1];
+                final int[] passGeneration = new int[1];
+                target.render(() -> {
+                    passGeneration[0] = generation;
+                    text[0] = EditorDocument.textOf(target);
+                });
+                PhaseMetrics.Timer timer = PhaseMetrics.INSTANCE.start(PhaseMetrics.Phase.LEX);
+                StyleRuns runs = null;
+                try {
+                    runs = computeRuns(text[0]);
+                } finally {
+                    // A cancelled pass is recorded too, so its time is counted and its event closed
+                    timer.stop(runs != null ? "highlight" : "highlight cancelled");
                 }
-                int columnNumber = start - lineStartOffset + 1; // Column is 1-indexed
+                if (runs != null) {
+                    SwingUtilities.invokeLater(new StylePass(target, passGeneration[0], runs, passStyles));
+                }
+            });
+        }
 
-                String type = null;
-                if (matcher.group(1) != null || matcher.group(2) != null || matcher.group(3) != null) {
-                    // Comments and whitespace are skipped (not added as tokens)
-                } else if (matcher.group(4) != null) type = "KEYWORD";
-                else if (matcher.group(5) != null) type = "BOOLEAN_LITERAL";
-                else if (matcher.group(6) != null) type = "NULL_LITERAL";
-                else if (matcher.group(7) != null) type = "STRING_LITERAL";
-                else if (matcher.group(8) != null) type = "CHAR_LITERAL";
-                else if (matcher.group(9) != null) type = "NUMBER_LITERAL";
-                else if (matcher.group(10) != null) type = "OPERATOR";
-                else if (matcher.group(11) != null) type = "PUNCTUATION";
-                else if (matcher.group(12) != null) type = "IDENTIFIER";
-                else if (matcher.group(13) != null) {
-                    // Unrecognized character
-                    throw new ParseException("Unrecognized character: '" + tokenValue + "' at Line " + lineNumber + ", Col " + columnNumber, start);
+        // Splits the text into runs of equal style; returns null if the pass was cancelled
+        private static StyleRuns computeRuns(CharSequence text) {
+            Lexer lexer = new Lexer();
+            lexer.setLenient(true);
+            lexer.reset(text, 0, 1, 0);
+            StyleRuns runs = new StyleRuns();
+            int pos = 0;
+            int count = 0;
+            try {
+                while (lexer.nextToken()) {
+                    if ((++count & 1023) == 0 && Thread.currentThread().isInterrupted()) return null;
+                    int start = lexer.tokenStart;
+                    if (start > pos) {
+                        runs.add(pos, start, containsComment(text, pos, start) ? STYLE_COMMENT : STYLE_PLAIN);
+                    }
+                    pos = start + lexer.tokenLength;
+                    runs.add(start, pos, styleOf(lexer.tokenType));
                 }
+            } catch (ParseException e) {
+                // Not thrown in lenient mode
+            }
+            if (pos < text.length()) {
+                runs.add(pos, text.length(), containsComment(text, pos, text.length()) ? STYLE_COMMENT : STYLE_PLAIN);
+            }
+            return runs;
+        }
+
+        // Text between two tokens is whitespace, comments or skipped characters
+        private static boolean containsComment(CharSequence text, int from, int to) {
+            for (int i = from; i < to - 1; i++) {
+                if (text.charAt(i) == '/' && (text.charAt(i + 1) == '/' || text.charAt(i + 1) == '*')) return true;
+            }
+            return false;
+        }
+
+        private static int styleOf(TokenType type) {
+            switch (type) {
+                case KEYWORD:
+                case BOOLEAN_LITERAL:
+                case NULL_LITERAL:
+                    return STYLE_KEYWORD;
+                case STRING_LITERAL:
+                case CHAR_LITERAL:
+                    return STYLE_STRING;
+                case NUMBER_LITERAL:
+                    return STYLE_NUMBER;
+                default:
+                    return STYLE_PLAIN;
+            }
+        }
 
-                if (type != null) {
-                    tokens.add(new Token(type, tokenValue, lineNumber, columnNumber));
+        // Contiguous style runs covering the snapshot; adjacent runs with the same style are merged
+        private static class StyleRuns {
+            private int[] starts = new int[1024];
+            private int[] ends = new int[1024];
+            private int[] styleIds = new int[1024];
+            private int size;
+
+            void add(int start, int end, int style) {
+                if (size > 0 && styleIds[size - 1] == style && ends[size - 1] == start) {
+                    ends[size - 1] = end;
+                    return;
                 }
+                if (size == starts.length) {
+                    starts = Arrays.copyOf(starts, size * 2);
+                    ends = Arrays.copyOf(ends, size * 2);
+                    styleIds = Arrays.copyOf(styleIds, size * 2);
+                }
+                starts[size] = start;
+                ends[size] = end;
+                styleIds[size] = style;
+                size++;
+            }
 
-                // Update line number and lineStartOffset for the characters consumed by the current token
-                for (int i = start; i < end; i++) {
-                    if (sourceCode.charAt(i) == '\n') {
-                        lineNumber++;
-                        lineStartOffset = i + 1;
+            // Number of leading runs identical to other's
+            int commonPrefix(StyleRuns other) {
+                int n = Math.min(size, other.size);
+                int i = 0;
+                while (i < n && starts[i] == other.starts[i] && ends[i] == other.ends[i] && styleIds[i] == other.styleIds[i]) {
+                    i++;
+                }
+                return i;
+            }
+
+            // Number of trailing runs identical to other's, comparing offsets from the end of the text
+            int commonSuffix(StyleRuns other) {
+                int n = Math.min(size, other.size);
+                int length = size == 0 ? 0 : ends[size - 1];
+                int otherLength = other.size == 0 ? 0 : other.ends[other.size - 1];
+                int i = 0;
+                while (i < n) {
+                    int a = size - 1 - i;
+                    int b = other.size - 1 - i;
+                    if (length - starts[a] != otherLength - other.starts[b] || length - ends[a] != otherLength - other.ends[b]
+                            || styleIds[a] != other.styleIds[b]) {
+                        break;
+                    }
+                    i++;
+                }
+                return i;
+            }
+
+            // Index of the run containing offset, clamped to the valid range
+            int indexAt(int offset) {
+                int low = 0;
+                int high = size - 1;
+                while (low < high) {
+                    int mid = (low + high + 1) >>> 1;
+                    if (starts[mid] <= offset) low = mid;
+                    else high = mid - 1;
+                }
+                return Math.max(low, 0);
+            }
+        }
+
+        // Applies one snapshot's runs on the EDT, re-posting itself until done or superseded
+        private class StylePass implements Runnable {
+            private final StyledDocument target;
+            private final int passGeneration;
+            private final StyleRuns runs;
+            private final AttributeSet[] passStyles;
+            private int next = -1;
+            private int stop;
+            private int wrapStart;
+            private int wrapStop;
+            private boolean touched;
+
+            StylePass(StyledDocument target, int passGeneration, StyleRuns runs, AttributeSet[] passStyles) {
+                this.target = target;
+                this.passGeneration = passGeneration;
+                this.runs = runs;
+                this.passStyles = passStyles;
+            }
+
+            @Override
+            @SuppressWarnings("deprecation")
+            public void run() {
+                if (target != document || passGeneration != generation) {
+                    // Superseded; if some runs were already written the editor no longer matches applied
+                    if (touched) applied = null;
+                    return;
+                }
+                if (next < 0) {
+                    // Only runs that differ from the last completed pass need to be applied
+                    int from = 0;
+                    int to = runs.size;
+                    if (applied != null) {
+                        from = runs.commonPrefix(applied);
+                        to = Math.max(from, runs.size - runs.commonSuffix(applied));
+                    }
+                    // First slice: the part of that range inside the viewport, then the rest below
+                    // it, wrapping around to the part above it
+                    Rectangle visible = editor.getVisibleRect();
+                    int first = Math.max(from, runs.indexAt(editor.viewToModel(visible.getLocation())));
+                    int last = Math.min(to, runs.indexAt(editor.viewToModel(
+                            new Point(visible.x + visible.width, visible.y + visible.height))) + 1);
+                    if (first >= last) {
+                        first = from;
+                        last = from;
+                    }
+                    applyRange(first, last);
+                    next = last;
+                    stop = to;
+                    wrapStart = from;
+                    wrapStop = first;
+                } else {
+                    int end = Math.min(next + RUNS_PER_BATCH, stop);
+                    applyRange(next, end);
+                    next = end;
+                }
+                if (next >= stop && wrapStop > wrapStart) {
+                    next = wrapStart;
+                    stop = wrapStop;
+                    wrapStop = wrapStart;
+                }
+                if (next < stop) {
+                    SwingUtilities.invokeLater(this);
+                } else {
+                    applied = runs;
+                }
+            }
+
+            private void applyRange(int from, int to) {
+                for (int i = from; i < to; i++) {
+                    int start = runs.starts[i];
+                    int length = runs.ends[i] - start;
+                    AttributeSet attributes = passStyles[runs.styleIds[i]];
+                    Element element = target.getCharacterElement(start);
+                    if (element.getStartOffset() <= start && element.getEndOffset() >= start + length
+                            && element.getAttributes().isEqual(attributes)) {
+                        continue; // Already styled this way
+                    }
+                    target.setCharacterAttributes(start, length, attributes, true);
+                    touched = true;
+                }
+            }
+        }
+    }
+
+    // Lexer class for tokenizing Java source code.
+    // Single pass over the input: a character-class table selects the scanner for each
+    // token and line/column bookkeeping happens as characters are consumed.
+    private static class Lexer {
+        // Character classes used to dispatch on the first character of a token
+        private static final byte CC_OTHER = 0;
+        private static final byte CC_SPACE = 1;
+        private static final byte CC_NEWLINE = 2;
+        private static final byte CC_IDENT = 3;
+        private static final byte CC_DIGIT = 4;
+        private static final byte CC_STRING = 5;
+        private static final byte CC_CHAR = 6;
+        private static final byte CC_SLASH = 7;
+        private static final byte CC_OPERATOR = 8;
+        private static final byte CC_PUNCTUATION = 9;
+        private static final byte CC_MINUS = 10;
+
+        private static final byte[] CHAR_CLASS = new byte[128];
+
+        // Characters past the end of a token that the scanners may inspect
+        private static final int MAX_LOOKAHEAD = 3;
+
+        // Inputs shorter than this lex faster on one thread than split up
+        private static final int PARALLEL_MIN_LENGTH = 1 << 20;
+        private static final int MIN_CHUNK_LENGTH = 1 << 18;
+        // More chunks than threads, so a thread that finishes early can take another
+        private static final int CHUNKS_PER_THREAD = 4;
+
+        static {
+            for (char c : " \t\u000B\f\r".toCharArray()) CHAR_CLASS[c] = CC_SPACE;
+            CHAR_CLASS['\n'] = CC_NEWLINE;
+            for (char c = 'a'; c <= 'z'; c++) CHAR_CLASS[c] = CC_IDENT;
+            for (char c = 'A'; c <= 'Z'; c++) CHAR_CLASS[c] = CC_IDENT;
+            CHAR_CLASS['_'] = CC_IDENT;
+            CHAR_CLASS['$'] = CC_IDENT;
+            for (char c = '0'; c <= '9'; c++) CHAR_CLASS[c] = CC_DIGIT;
+            CHAR_CLASS['"'] = CC_STRING;
+            CHAR_CLASS['\''] = CC_CHAR;
+            CHAR_CLASS['/'] = CC_SLASH;
+            for (char c : "+*%=!&|^<>.".toCharArray()) CHAR_CLASS[c] = CC_OPERATOR;
+            CHAR_CLASS['-'] = CC_MINUS;
+            for (char c : "(){}[],;".toCharArray()) CHAR_CLASS[c] = CC_PUNCTUATION;
+        }
+
+        private static final String[] KEYWORDS = {
+                "abstract", "assert", "boolean", "break", "byte", "case", "catch", "char", "class", "const",
+                "continue", "default", "do", "double", "else", "enum", "extends", "final", "finally", "float",
+                "for", "goto", "if", "implements", "import", "instanceof", "int", "interface", "long", "native",
+                "new", "package", "private", "protected", "public", "return", "short", "static", "strictfp",
+                "super", "switch", "synchronized", "this", "throw", "throws", "transient", "try", "void",
+                "volatile", "while"
+        };
+
+        // Perfect hash over keywords and the boolean/null literals. The multiplier is searched once
+        // at class initialisation so that every reserved word lands in its own slot.
+        private static final int HASH_BITS = 9;
+        private static final String[] RESERVED_WORDS = new String[1 << HASH_BITS];
+        private static final TokenType[] RESERVED_TYPES = new TokenType[1 << HASH_BITS];
+        private static final int HASH_MULTIPLIER;
+
+        static {
+            List<String> words = new ArrayList<>(Arrays.asList(KEYWORDS));
+            words.addAll(Arrays.asList("true", "false", "null"));
+            int multiplier = 0x9E3779B1;
+            search:
+            while (true) {
+                Arrays.fill(RESERVED_WORDS, null);
+                for (String word : words) {
+                    int slot = reservedSlot(word, 0, word.length(), multiplier);
+                    if (RESERVED_WORDS[slot] != null) {
+                        multiplier += 2;
+                        continue search;
+                    }
+                    RESERVED_WORDS[slot] = word;
+                }
+                break;
+            }
+            HASH_MULTIPLIER = multiplier;
+            for (String word : words) {
+                TokenType type = TokenType.KEYWORD;
+                if (word.equals("true") || word.equals("false")) type = TokenType.BOOLEAN_LITERAL;
+                else if (word.equals("null")) type = TokenType.NULL_LITERAL;
+                RESERVED_TYPES[reservedSlot(word, 0, word.length(), multiplier)] = type;
+            }
+        }
+
+        private static int reservedSlot(CharSequence s, int start, int length, int multiplier) {
+            int key = (s.charAt(start) << 16) ^ (s.charAt(start + 1) << 8) ^ s.charAt(start + length - 1) ^ (length << 24);
+            return (key * multiplier) >>> (32 - HASH_BITS);
+        }
+
+        // Returns the reserved-word type for source[start, start + length), or IDENTIFIER
+        private static TokenType classifyWord(CharSequence source, int start, int length) {
+            if (length < 2 || length > 12) return TokenType.IDENTIFIER;
+            int slot = reservedSlot(source, start, length, HASH_MULTIPLIER);
+            String word = RESERVED_WORDS[slot];
+            if (word == null || word.length() != length) return TokenType.IDENTIFIER;
+            for (int i = 2; i < length - 1; i++) {
+                if (source.charAt(start + i) != word.charAt(i)) return TokenType.IDENTIFIER;
+            }
+            return source.charAt(start) == word.charAt(0) && source.charAt(start + 1) == word.charAt(1)
+                    && source.charAt(start + length - 1) == word.charAt(length - 1)
+                    ? RESERVED_TYPES[slot] : TokenType.IDENTIFIER;
+        }
+
+        private static byte charClass(char c) {
+            return c < 128 ? CHAR_CLASS[c] : CC_OTHER;
+        }
+
+        private static boolean isIdentifierPart(char c) {
+            byte cc = charClass(c);
+            return cc == CC_IDENT || cc == CC_DIGIT;
+        }
+
+        // Regex word character (\w): letters, digits and underscore, but not '$'
+        private static boolean isWordChar(char c) {
+            return c != '$' && isIdentifierPart(c);
+        }
+
+        private static boolean isDigit(CharSequence source, int index) {
+            return index < source.length() && charClass(source.charAt(index)) == CC_DIGIT;
+        }
+
+        // Scanner state. A Lexer can be positioned anywhere between two tokens with reset()
+        // and then pulled one token at a time with nextToken().
+        private CharSequence source;
+        private int length;
+        private int pos;
+        private int lineNumber;
+        private int lineStartOffset; // Offset of the start of the current line
+        private boolean unterminatedComment;
+        private boolean lenient;
+
+        // The token produced by the last successful nextToken()
+        private TokenType tokenType;
+        private int tokenStart;
+        private int tokenLength;
+        private int tokenLine;
+        private int tokenColumn;
+
+        public List<Token> tokenize(String sourceCode) throws ParseException {
+            return (sourceCode.length() >= PARALLEL_MIN_LENGTH ? lexParallel(sourceCode, sourceCode) : lex(sourceCode)).asList();
+        }
+
+        public TokenStream lex(CharSequence sourceCode) throws ParseException {
+            TokenStream tokens = new TokenStream(sourceCode, sourceCode.length() / 4 + 16);
+            reset(sourceCode, 0, 1, 0);
+            while (nextToken()) {
+                tokens.add(tokenType, tokenStart, tokenLength, tokenLine, tokenColumn);
+            }
+            return tokens;
+        }
+
+        // Same tokens as lex(tokenSource), lexed in chunks on the common ForkJoinPool. Each chunk starts
+        // at a newline and is lexed as if the newline were outside any comment or literal; the chunks
+        // are then stitched in order by lexing on from where the previous chunk really ended until a
+        // token starts where one of the next chunk's tokens does. Lexer state between tokens depends
+        // only on the offset (its line number up to a constant), so from there the chunk's tokens are
+        // the true ones, with their line numbers shifted. A chunk that began inside a comment or text
+        // block therefore costs a re-lex of its first lines rather than a wrong token. Workers read
+        // through their own sourceCode.subSequence(0, length()), so sourceCode must be a String or
+        // a snapshot whose separate views can be read on separate threads; the returned tokens read
+        // their values from tokenSource, which must hold the same text.
+        public TokenStream lexParallel(CharSequence sourceCode, CharSequence tokenSource) throws ParseException {
+            final int length = sourceCode.length();
+            int parallelism = ForkJoinPool.getCommonPoolParallelism() + 1; // The caller helps too
+            int chunkLength = Math.max(MIN_CHUNK_LENGTH, length / (parallelism * CHUNKS_PER_THREAD));
+            List<Integer> bounds = new ArrayList<>();
+            bounds.add(0);
+            for (int bound = chunkLength; bound < length; bound += chunkLength) {
+                while (bound < length && sourceCode.charAt(bound - 1) != '\n') bound++;
+                if (bound < length) bounds.add(bound);
+            }
+            if (bounds.size() < 2) return lex(tokenSource);
+            bounds.add(length);
+
+            LexChunk[] chunks = new LexChunk[bounds.size() - 1];
+            for (int i = 0; i < chunks.length; i++) {
+                chunks[i] = new LexChunk(sourceCode.subSequence(0, length), bounds.get(i), bounds.get(i + 1), lenient);
+            }
+            for (int i = 1; i < chunks.length; i++) chunks[i].fork(); // Into the common pool
+            chunks[0].invoke();
+            for (LexChunk chunk : chunks) chunk.join();
+
+            // Decide which tokens come from where, then copy them all into place in parallel
+            TokenStream relexed = new TokenStream(sourceCode, 64); // Tokens lexed while stitching
+            List<TokenCopy> copies = new ArrayList<>();
+            TokenCopy relexedRun = null;
+            int total = 0;
+            boolean sawUnterminated = false;
+            reset(sourceCode, 0, 1, 0);
+            int next = 0; // First chunk not yet stitched in
+            while (true) {
+                boolean more = nextToken(); // Lexing from a true state, so an error here is real
+                sawUnterminated |= unterminatedComment;
+                if (!more) break;
+                while (next < chunks.length && tokenStart >= chunks[next].end) next++;
+                if (next < chunks.length) {
+                    LexChunk chunk = chunks[next];
+                    int match = chunk.tokens.indexAtOrAfter(tokenStart);
+                    if (match < chunk.tokens.size() && chunk.tokens.getStart(match) == tokenStart) {
+                        int lineDelta = tokenLine - chunk.tokens.getLineNumber(match);
+                        int count = chunk.tokens.size() - match;
+                        copies.add(new TokenCopy(chunk.tokens, match, count, total, lineDelta));
+                        total += count;
+                        relexedRun = null;
+                        sawUnterminated |= chunk.unterminatedAt >= match;
+                        reset(sourceCode, chunk.endPos, chunk.endLine + lineDelta, chunk.endLineStart);
+                        next++;
+                        continue;
                     }
                 }
+                if (relexedRun == null) {
+                    relexedRun = new TokenCopy(relexed, relexed.size(), 0, total, 0);
+                    copies.add(relexedRun);
+                }
+                relexed.add(tokenType, tokenStart, tokenLength, tokenLine, tokenColumn);
+                relexedRun.count++;
+                total++;
+            }
+            unterminatedComment = sawUnterminated;
+
+            TokenStream tokens = TokenStream.ofSize(tokenSource, total);
+            for (TokenCopy copy : copies) {
+                copy.target = tokens;
+                copy.fork();
+            }
+            for (TokenCopy copy : copies) copy.join();
+            return tokens;
+        }
+
+        @SuppressWarnings("serial")
+        private static class TokenCopy extends RecursiveAction {
+            final TokenStream from;
+            final int index;
+            int count;
+            final int at;
+            final int lineDelta;
+            TokenStream target;
+
+            TokenCopy(TokenStream from, int index, int count, int at, int lineDelta) {
+                this.from = from;
+                this.index = index;
+                this.count = count;
+                this.at = at;
+                this.lineDelta = lineDelta;
+            }
+
+            @Override
+            protected void compute() {
+                target.copyFrom(from, index, count, at, lineDelta);
+            }
+        }
+
+        // The tokens starting in [start, end) of source, lexed with line numbers counted from the
+        // newline before start, and the lexer state after the last of them
+        @SuppressWarnings("serial")
+        private static class LexChunk extends RecursiveAction {
+            final CharSequence source;
+            final int start;
+            final int end;
+            final boolean lenient;
+            TokenStream tokens;
+            int unterminatedAt = -1; // Index of the last '/' lexed for an unterminated "/*"
+            int endPos;
+            int endLine;
+            int endLineStart;
+
+            LexChunk(CharSequence source, int start, int end, boolean lenient) {
+                this.source = source;
+                this.start = start;
+                this.end = end;
+                this.lenient = lenient;
+            }
 
-                currentPosition = end;
+            @Override
+            protected void compute() {
+                Lexer lexer = new Lexer();
+                lexer.setLenient(lenient);
+                lexer.reset(source, start, 1, start);
+                tokens = new TokenStream(source, (end - start) / 4 + 16);
+                endPos = start;
+                endLine = 1;
+                endLineStart = start;
+                try {
+                    while (lexer.nextToken() && lexer.tokenStart < end) {
+                        tokens.add(lexer.tokenType, lexer.tokenStart, lexer.tokenLength, lexer.tokenLine, lexer.tokenColumn);
+                        if (lexer.unterminatedComment) {
+                            unterminatedAt = tokens.size() - 1;
+                            lexer.unterminatedComment = false;
+                        }
+                        endPos = lexer.pos;
+                        endLine = lexer.lineNumber;
+                        endLineStart = lexer.lineStartOffset;
+                    }
+                } catch (ParseException e) {
+                    // Stitching lexes on from the state before it and reports it if it is real
+                }
             }
+        }
+
+        // In lenient mode characters that cannot start a token are skipped instead of failing the scan
+        public void setLenient(boolean lenient) {
+            this.lenient = lenient;
+        }
+
+        public void reset(CharSequence sourceCode, int offset, int line, int lineStart) {
+            source = sourceCode;
+            length = sourceCode.length();
+            pos = offset;
+            lineNumber = line;
+            lineStartOffset = lineStart;
+            unterminatedComment = false;
+        }
+
+        // True if a "/*" without a closing "*\/" was lexed as operators since the last reset
+        public boolean sawUnterminatedComment() {
+            return unterminatedComment;
+        }
+
+        // Advances to the next token, returning false at end of input
+        public boolean nextToken() throws ParseException {
+            final CharSequence sourceCode = source;
+            final int length = this.length;
 
-            // Check for any unparsed content at the end
-            if (currentPosition < sourceCode.length()) {
-                String remaining = sourceCode.substring(currentPosition);
-                if (!remaining.trim().isEmpty()) {
-                    // Update line number and lineStartOffset for the remaining content
-                    for (int i = currentPosition; i < sourceCode.length(); i++) {
-                        if (sourceCode.charAt(i) == '\n') {
+            while (pos < length) {
+                char c = sourceCode.charAt(pos);
+                int start = pos;
+                TokenType type;
+
+                switch (charClass(c)) {
+                    case CC_NEWLINE:
+                        lineNumber++;
+                        lineStartOffset = ++pos;
+                        continue;
+                    case CC_SPACE:
+                        pos++;
+                        continue;
+                    case CC_IDENT:
+                        do {
+                            pos++;
+                        } while (pos < length && isIdentifierPart(sourceCode.charAt(pos)));
+                        type = classifyWord(sourceCode, start, pos - start);
+                        break;
+                    case CC_DIGIT:
+                        pos = scanNumber(sourceCode, pos);
+                        if (pos < 0 && skipUnrecognized(start)) continue;
+                        type = TokenType.NUMBER_LITERAL;
+                        break;
+                    case CC_MINUS: {
+                        // A '-' directly after a word character starts a signed number literal
+                        int end = start > 0 && isDigit(sourceCode, pos + 1) && isWordChar(sourceCode.charAt(start - 1))
+                                ? scanNumber(sourceCode, pos + 1) : -1;
+                        if (end > 0) {
+                            pos = end;
+                            type = TokenType.NUMBER_LITERAL;
+                        } else {
+                            pos = scanOperator(sourceCode, pos);
+                            type = TokenType.OPERATOR;
+                        }
+                        break;
+                    }
+                    case CC_STRING: {
+                        int i = pos + 1;
+                        int line = lineNumber;
+                        int lineStart = lineStartOffset;
+                        while (i < length) {
+                            char ch = sourceCode.charAt(i);
+                            if (ch == '"') break;
+                            if (ch == '\\') {
+                                i++;
+                                if (i >= length) break;
+                                ch = sourceCode.charAt(i);
+                            }
+                            if (ch == '\n') {
+                                line++;
+                                lineStart = i + 1;
+                            }
+                            i++;
+                        }
+                        if (i >= length && skipUnrecognized(start)) continue;
+                        pos = i + 1;
+                        setToken(TokenType.STRING_LITERAL, start);
+                        lineNumber = line;
+                        lineStartOffset = lineStart;
+                        return true;
+                    }
+                    case CC_CHAR: {
+                        // Exactly one character or escape sequence between the quotes
+                        int i = pos + 1;
+                        if (i < length && sourceCode.charAt(i) == '\\') i += 2;
+                        else if (i < length && sourceCode.charAt(i) != '\'') i++;
+                        else i = length;
+                        if ((i >= length || sourceCode.charAt(i) != '\'') && skipUnrecognized(start)) continue;
+                        pos = i + 1;
+                        setToken(TokenType.CHAR_LITERAL, start);
+                        if (sourceCode.charAt(i - 1) == '\n') {
                             lineNumber++;
-                            lineStartOffset = i + 1;
+                            lineStartOffset = i;
+                        }
+                        return true;
+                    }
+                    case CC_SLASH: {
+                        char next = pos + 1 < length ? sourceCode.charAt(pos + 1) : 0;
+                        if (next == '/') {
+                            while (pos < length && sourceCode.charAt(pos) != '\n') pos++;
+                            continue;
                         }
+                        if (next == '*') {
+                            int close = indexOfCommentEnd(sourceCode, pos + 2);
+                            if (close >= 0) {
+                                for (int i = pos + 2; i < close; i++) {
+                                    if (sourceCode.charAt(i) == '\n') {
+                                        lineNumber++;
+                                        lineStartOffset = i + 1;
+                                    }
+                                }
+                                pos = close;
+                                continue;
+                            }
+                            // Unterminated comment: the slash is lexed as an operator
+                            unterminatedComment = true;
+                        }
+                        pos = scanOperator(sourceCode, pos);
+                        type = TokenType.OPERATOR;
+                        break;
                     }
-                    int columnNumber = currentPosition - lineStartOffset + 1;
-                    throw new ParseException("Unparsed content remaining: '" + remaining + "' at Line " + lineNumber + ", Col " + columnNumber, currentPosition);
+                    case CC_OPERATOR:
+                        pos = scanOperator(sourceCode, pos);
+                        type = TokenType.OPERATOR;
+                        break;
+                    case CC_PUNCTUATION:
+                        pos++;
+                        type = TokenType.PUNCTUATION;
+                        break;
+                    default:
+                        skipUnrecognized(start);
+                        continue;
                 }
+
+                setToken(type, start);
+                return true;
             }
+            return false;
+        }
 
-            return tokens;
+        // Throws in strict mode; in lenient mode steps over the offending character and returns true
+        private boolean skipUnrecognized(int start) throws ParseException {
+            if (!lenient) throw unrecognized(source, start, lineNumber, lineStartOffset);
+            pos = start + 1;
+            return true;
+        }
+
+        private void setToken(TokenType type, int start) {
+            tokenType = type;
+            tokenStart = start;
+            tokenLength = pos - start;
+            tokenLine = lineNumber;
+            tokenColumn = start - lineStartOffset + 1;
+        }
+
+        // Offset just past the closing "*\/" of a block comment whose body starts at from, or -1
+        private static int indexOfCommentEnd(CharSequence source, int from) {
+            for (int i = from, end = source.length() - 1; i < end; i++) {
+                if (source.charAt(i) == '*' && source.charAt(i + 1) == '/') return i + 2;
+            }
+            return -1;
+        }
+
+        // Scans digits, an optional fraction and an optional exponent. Like the \b-anchored
+        // literal pattern it falls back to a shorter literal when the longer one runs into a
+        // word character, and returns -1 when no form is terminated properly.
+        private static int scanNumber(CharSequence source, int pos) {
+            final int length = source.length();
+            while (pos < length && charClass(source.charAt(pos)) == CC_DIGIT) pos++;
+            int integerEnd = pos;
+            int fractionEnd = -1;
+            if (pos + 1 < length && source.charAt(pos) == '.' && isDigit(source, pos + 1)) {
+                pos += 2;
+                while (isDigit(source, pos)) pos++;
+                fractionEnd = pos;
+            }
+            if (pos + 1 < length && (source.charAt(pos) == 'e' || source.charAt(pos) == 'E')) {
+                int exp = pos + 1;
+                if (source.charAt(exp) == '+' || source.charAt(exp) == '-') exp++;
+                if (isDigit(source, exp)) {
+                    while (isDigit(source, exp)) exp++;
+                    if (exp >= length || !isWordChar(source.charAt(exp))) return exp;
+                }
+            }
+            if (fractionEnd > 0 && (fractionEnd >= length || !isWordChar(source.charAt(fractionEnd)))) return fractionEnd;
+            if (integerEnd >= length || !isWordChar(source.charAt(integerEnd))) return integerEnd;
+            return -1;
+        }
+
+        // Longest operator starting at pos; the caller guarantees an operator character there
+        private static int scanOperator(CharSequence source, int pos) {
+            final int length = source.length();
+            char c = source.charAt(pos);
+            char next = pos + 1 < length ? source.charAt(pos + 1) : 0;
+            switch (c) {
+                case '.':
+                    return pos + 1;
+                case '+':
+                case '-':
+                case '&':
+                case '|':
+                    return next == c || next == '=' ? pos + 2 : pos + 1;
+                case '<':
+                    if (next == '<') return pos + 2 < length && source.charAt(pos + 2) == '=' ? pos + 3 : pos + 2;
+                    return next == '=' ? pos + 2 : pos + 1;
+                case '>':
+                    if (next == '>') {
+                        char third = pos + 2 < length ? source.charAt(pos + 2) : 0;
+                        if (third == '=') return pos + 3;
+                        if (third == '>') return pos + 3 < length && source.charAt(pos + 3) == '=' ? pos + 4 : pos + 3;
+                        return pos + 2;
+                    }
+                    return next == '=' ? pos + 2 : pos + 1;
+                default: // * / % = ! ^
+                    return next == '=' ? pos + 2 : pos + 1;
+            }
+        }
+
+        private static ParseException unrecognized(CharSequence source, int offset, int lineNumber, int lineStartOffset) {
+            return new ParseException("Unrecognized character: '" + source.charAt(offset) + "' at Line " + lineNumber
+                    + ", Col " + (offset - lineStartOffset + 1), offset);
         }
     }
 
 
     public static void main(String[] args) {
+        if (args.length > 0 && args[0].startsWith("--")) {
+            switch (args[0]) {
+                case "--batch":
+                    System.exit(BatchRunner.run(args));
+                    break;
+                case "--compile":
+                case "--run":
+                case "--lex":
+                    System.exit(CommandLine.run(args));
+                    break;
+                case "--serve":
+                    int status = ApiServer.serve(args);
+                    if (status != 0) System.exit(status);
+                    return; // The server's threads keep the JVM running
+                default:
+                    System.err.println(CommandLine.USAGE);
+                    System.exit(2);
+            }
+        }
+
         // Set system look and feel for better appearance
         try {
             UIManager.setLookAndFeel(UIManager.getSystemLookAndFeelClassName());